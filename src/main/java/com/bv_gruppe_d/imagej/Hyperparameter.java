@@ -1,11 +1,22 @@
 package com.bv_gruppe_d.imagej;
 
+import featureextraction.EllipseDetector;
+import featureextraction.HoughTransformation;
+import preprocessing.Binarization;
+
 /**
  * Provides hyperparameter for the computation process, which were defined problem specific by
  * manual testing. 
  */
 public class Hyperparameter {
 
+	/**
+	 * Which method is used to find the ellipses in the edge image. HOUGH is robust
+	 * against segments that contain more than one ellipsis, LEAST_SQUARES is much
+	 * faster but expects one ellipsis per segment
+	 */
+	public static final EllipseDetector.Engine ELLIPSE_DETECTION_ENGINE = EllipseDetector.Engine.HOUGH;
+
 	/**
 	 * How many votes the maximum of the accumulator needs to be considered a valid
 	 * ellipsis. Increasing this number leads to fewer ellipses. Choosing a too
@@ -31,12 +42,101 @@ public class Hyperparameter {
 	 * ignored
 	 */
 	public static final double HOUGH_ELLIPSIS_AXIS_MAX = 100;
+
+	/**
+	 * How the hough transformation chooses the point pairs of the major axis.
+	 * EXHAUSTIVE tests all of them, RANDOMIZED only tests a random sample which is
+	 * faster on big segments but less accurate
+	 */
+	public static final HoughTransformation.Mode HOUGH_MODE = HoughTransformation.Mode.EXHAUSTIVE;
+
+	/**
+	 * How many point pairs the randomized hough transformation draws per segment at
+	 * most
+	 */
+	public static final int HOUGH_RANDOM_SAMPLE_BUDGET = 20000;
+
+	/**
+	 * After how many point pairs without a better result the randomized hough
+	 * transformation stops searching in a segment
+	 */
+	public static final int HOUGH_RANDOM_CONVERGENCE_LIMIT = 5000;
+
+	/**
+	 * Which fraction of a segment's points has to be on the ellipsis fitted by the
+	 * least squares method for it to be used
+	 */
+	public static final double LEAST_SQUARES_MIN_INLIER_RATIO = 0.5;
 	
 	/**
 	 * Determines the amount of pixels that are set to the maximum/minimum pixel value 
 	 * available in percent. 
 	 */
 	public static final double SATURATION = 0.05;
+
+	/**
+	 * How the threshold of the binarization is chosen. FIXED uses 128 for all
+	 * pixels, LOCAL_MEAN and SAUVOLA adapt it to the brightness around each pixel,
+	 * which helps with unevenly lit images
+	 */
+	public static final Binarization.Mode BINARIZATION_MODE = Binarization.Mode.FIXED;
+
+	/**
+	 * The width and height (in pixels) of the window around each pixel used by the
+	 * local binarization modes. It should be bigger than the structures to find
+	 */
+	public static final int BINARIZATION_WINDOW_SIZE = 31;
+
+	/**
+	 * How much darker than the mean of its window a pixel has to be to become black
+	 * in the LOCAL_MEAN binarization
+	 */
+	public static final double BINARIZATION_MEAN_OFFSET = 10;
+
+	/**
+	 * How strongly the standard deviation of the window lowers the threshold of the
+	 * SAUVOLA binarization. Typical values are between 0.2 and 0.5
+	 */
+	public static final double BINARIZATION_SAUVOLA_K = 0.2;
+	
+	/**
+	 * The width and height (in pixels) of the upper left part of each image that is
+	 * analyzed. Only this part of the files is decoded
+	 */
+	public static final int ANALYSIS_REGION_SIZE = 512;
+
+	/**
+	 * Only every n-th pixel in both directions is decoded from the files, so a
+	 * region of n times the size is analyzed. The ellipses become n times smaller,
+	 * so the axis limits of the hough transformation have to be adapted as well
+	 */
+	public static final int DECODING_SUBSAMPLING = 1;
+
+	/**
+	 * How many threads decode the image files of the training and test data
+	 */
+	public static final int IMAGE_LOADING_THREADS = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * How many images are decoded or waiting to be consumed at the same time at
+	 * most. Limits the memory used while loading big sets of images
+	 */
+	public static final int IMAGE_LOADING_MAX_IN_FLIGHT = 4 * IMAGE_LOADING_THREADS;
+
+	/**
+	 * If true the training and test data only keep the files of the images, which
+	 * are decoded again whenever they are needed. Only the header of the files is
+	 * read while loading. If false all images are decoded while loading and kept
+	 * in the memory
+	 */
+	public static final boolean LAZY_IMAGE_LOADING = true;
+
+	/**
+	 * How many of the lazily loaded images stay decoded for the next use. The
+	 * garbage collector may still remove them when the memory runs low. 0 disables
+	 * the cache
+	 */
+	public static final int IMAGE_CACHE_SIZE = 64;
 	
 	/**
 	 * Determines the size of the mask used to remove unwanted effects with closing.
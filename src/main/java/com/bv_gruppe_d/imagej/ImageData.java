@@ -1,10 +1,13 @@
 package com.bv_gruppe_d.imagej;
 
+import java.awt.Rectangle;
+
 import ij.process.ImageProcessor;
 
 /**
  * A data structure for storing an image processor with the provided label.
- *
+ * Subclasses may create the image processor on demand by overriding
+ * {@link #getImageProcessor()}.
  */
 public class ImageData {
 	
@@ -24,6 +27,22 @@ public class ImageData {
 		return this.label;
 	}
 	
+	/**
+	 * Subclasses that create the image processor on demand override this to answer without creating it.
+	 * @return The width of the image.
+	 */
+	public int getWidth() {
+		return getImageProcessor().getWidth();
+	}
+	
+	/**
+	 * Subclasses that create the image processor on demand override this to answer without creating it.
+	 * @return The height of the image.
+	 */
+	public int getHeight() {
+		return getImageProcessor().getHeight();
+	}
+	
 	/**
 	 * Creates a deep copy of this ImageData object with the same label and a duplicate of the image processor.
 	 * 
@@ -31,6 +50,26 @@ public class ImageData {
 	 * @return A deep copy of this object.
 	 */
 	public ImageData duplicate() {
-		return new ImageData(imageProcessor.duplicate(), label);
+		return new ImageData(getImageProcessor().duplicate(), label);
+	}
+	
+	/**
+	 * Creates a copy of a part of the image with the same label. In contrast to
+	 * duplicating and then cropping the image only the pixels of the part are copied.
+	 * 
+	 * Changes on the returned object will not effect this object and vice versa.
+	 * @return A copy of the given part of the image.
+	 */
+	public ImageData crop(int x, int y, int width, int height) {
+		ImageProcessor source = getImageProcessor();
+		ImageProcessor part;
+		// the image processor may be shared, so others must not see the changed roi
+		synchronized (source) {
+			Rectangle roi = source.getRoi();
+			source.setRoi(x, y, width, height);
+			part = source.crop();
+			source.setRoi(roi.x, roi.y, roi.width, roi.height);
+		}
+		return new ImageData(part, label);
 	}
 }
@@ -5,15 +5,23 @@ package featureextraction;
  * parameter. An accumulator does not remember exact values, instead it stores
  * its values in bins and only remembers how many entries are in each bin.
  * It is similar to a histogram.
+ *
+ * The accumulator remembers which bins were used since it was cleared the last
+ * time, so that finding the maximum and clearing only has to look at those bins
+ * instead of all of them. It does not allocate any memory after construction.
  */
 public class Accumulator {
 	private final double binSize, minValue;
 	private final int[] counts;
-	private int maxUsedIndex;
+	private final int[] touched;
+	private int touchedCount;
+
+	private final Max max = new Max();
+	private Max[] peaks = new Max[0];
 
 	/**
 	 * This
-	 * 
+	 *
 	 * @param minValue the minimum value to be stored, all smaller ones are discarded. Will be the start of the first bin.
 	 * @param maxValue the maximum value to be stored. It will be rounded up to the next possible end of a bucket and be used as the end of the last bin. This behavior ensures that all buckets have the same size.
 	 * @param binSize how big each bin is
@@ -21,8 +29,9 @@ public class Accumulator {
 	public Accumulator(double minValue, double maxValue, double binSize) {
 		this.minValue = minValue;
 		this.binSize = binSize;
-		maxUsedIndex = 0;
 		counts = new int[binIndex(maxValue) + 1];
+		touched = new int[counts.length];
+		touchedCount = 0;
 	}
 
 	private int binIndex(double value) {
@@ -32,37 +41,140 @@ public class Accumulator {
 	/**
 	 * This method adds a value to the accumulator. This is done by finding the
 	 * bucket the value belongs in and increasing its counter by one
-	 * 
+	 *
 	 * @param value The value to add
 	 */
 	public void add(double value) {
+		if (value < minValue) {
+			return;
+		}
 		int index = binIndex(value);
-		try {
-			counts[index]++;
-			maxUsedIndex = Math.max(maxUsedIndex, index);
-		} catch (ArrayIndexOutOfBoundsException ex) {
-			// Value is not between min and max, so we can safely ignore it
+		if (index < counts.length) {
+			if (counts[index]++ == 0) {
+				touched[touchedCount++] = index;
+			}
 		}
+		// Otherwise the value is not between min and max, so we can safely ignore it
 	}
 
 	/**
 	 * This method finds the maximum of the accumulator. It also resets the
 	 * accumulator so that it can be used again. Combining both operations ensures
 	 * the accumulator reset is not forgot and provides shorter and faster code.
-	 * 
-	 * @return information about the accumulators maximum
+	 *
+	 * If several bins have the same number of votes the one with the smallest
+	 * values is chosen.
+	 *
+	 * @return information about the accumulators maximum. The returned object is
+	 *         reused and only valid until the next call of this method
 	 */
 	public Max findMaxAndClear() {
-		int max = 0, maxi = 0;
-		for (int i = 0; i < maxUsedIndex; ++i) {
-			if (counts[i] > max) {
+		int maxVotes = 0, maxi = 0;
+		for (int t = 0; t < touchedCount; ++t) {
+			int i = touched[t];
+			int votes = counts[i];
+			if (votes > maxVotes || (votes == maxVotes && i < maxi)) {
 				maxi = i;
-				max = counts[i];
-				counts[i] = 0;
+				maxVotes = votes;
+			}
+		}
+		clear();
+		max.set(maxVotes, minValue + (maxi + 0.5) * binSize);
+		return max;
+	}
+
+	/**
+	 * This method finds the k highest local maxima of the accumulator and resets
+	 * it. The center of each peak is interpolated between the bins by fitting a
+	 * parabola through the peak bin and its two neighbors.
+	 *
+	 * @param k the maximal number of peaks to find, at least 1
+	 * @return the number of peaks found (at most k). The peaks can be read with
+	 *         {@link #getPeak(int)}, sorted by votes in descending order
+	 * @throws IllegalArgumentException if k is smaller than 1
+	 */
+	public int findPeaksAndClear(int k) {
+		if (k < 1) {
+			throw new IllegalArgumentException("At least one peak has to be searched, k = " + k);
+		}
+		if (peaks.length < k) {
+			ensurePeakCapacity(k);
+		}
+
+		int peakCount = 0;
+		for (int t = 0; t < touchedCount; ++t) {
+			int i = touched[t];
+			int votes = counts[i];
+			int left = (i > 0) ? counts[i - 1] : 0;
+			int right = (i + 1 < counts.length) ? counts[i + 1] : 0;
+			// On a plateau only the leftmost bin is a peak
+			boolean isPeak = votes > left && votes >= right;
+			if (isPeak && (peakCount < k || votes > peaks[peakCount - 1].votes)) {
+				peakCount = insertPeak(peakCount, k, votes, interpolateCenter(i, left, votes, right));
 			}
 		}
-		maxUsedIndex = 0;
-		return new Max(max, minValue + (maxi + 0.5) * binSize);
+		clear();
+		return peakCount;
+	}
+
+	/**
+	 * @param index the index of the peak, smaller than the result of the last
+	 *              call of {@link #findPeaksAndClear(int)}
+	 * @return the peak. The returned object is reused and only valid until the
+	 *         next call of findPeaksAndClear
+	 */
+	public Max getPeak(int index) {
+		return peaks[index];
+	}
+
+	private void ensurePeakCapacity(int k) {
+		Max[] newPeaks = new Max[k];
+		System.arraycopy(peaks, 0, newPeaks, 0, peaks.length);
+		for (int i = peaks.length; i < k; ++i) {
+			newPeaks[i] = new Max();
+		}
+		peaks = newPeaks;
+	}
+
+	/**
+	 * Inserts a peak into the sorted list of peaks, dropping the smallest one if
+	 * the list is full
+	 *
+	 * @return the new number of peaks
+	 */
+	private int insertPeak(int peakCount, int k, int votes, double center) {
+		int position = Math.min(peakCount, k - 1);
+		// Reuse the object that falls out of the list
+		Max free = peaks[position];
+		while (position > 0 && peaks[position - 1].votes < votes) {
+			peaks[position] = peaks[position - 1];
+			position--;
+		}
+		free.set(votes, center);
+		peaks[position] = free;
+		return Math.min(peakCount + 1, k);
+	}
+
+	/**
+	 * Calculates the position of the vertex of the parabola through the three bins
+	 */
+	private double interpolateCenter(int i, int left, int votes, int right) {
+		double offset = 0;
+		double curvature = left - 2.0 * votes + right;
+		if (curvature != 0) {
+			offset = 0.5 * (left - right) / curvature;
+		}
+		return minValue + (i + 0.5 + offset) * binSize;
+	}
+
+	/**
+	 * Resets all bins that were used since the last reset
+	 */
+	private void clear() {
+		for (int t = 0; t < touchedCount; ++t) {
+			counts[touched[t]] = 0;
+		}
+		touchedCount = 0;
 	}
 
 	/**
@@ -70,10 +182,27 @@ public class Accumulator {
 	 * about the chosen value (center) and how many votes it got
 	 */
 	public static class Max {
-		public final int votes;
-		public final double center;
+		private int votes;
+		private double center;
+
+		private Max() {
+		}
+
+		/**
+		 * @return how many votes the bin got
+		 */
+		public int getVotes() {
+			return votes;
+		}
+
+		/**
+		 * @return the value the bin stands for
+		 */
+		public double getCenter() {
+			return center;
+		}
 
-		private Max(int votes, double center) {
+		private void set(int votes, double center) {
 			this.votes = votes;
 			this.center = center;
 		}
@@ -0,0 +1,42 @@
+package featureextraction;
+
+import java.util.List;
+
+import com.bv_gruppe_d.imagej.ImageData;
+
+/**
+ * Finds ellipses in an edge image. The implementations differ in speed and
+ * accuracy, but all of them return their results in the same form so that the
+ * FeatureExtractor does not depend on the chosen method.
+ */
+public interface EllipseDetector {
+
+	/**
+	 * The available detection methods
+	 */
+	public enum Engine {
+		/**
+		 * The hough transformation, see {@link HoughTransformation}
+		 */
+		HOUGH,
+		/**
+		 * A direct least squares fit per segment, see
+		 * {@link LeastSquaresEllipseFit}
+		 */
+		LEAST_SQUARES
+	}
+
+	/**
+	 * Searches for ellipses in the edge image.
+	 * 
+	 * @param imageData the edge image
+	 * @return the ellipses that were found
+	 */
+	List<EllipsisData> execute(ImageData imageData);
+
+	/**
+	 * Releases the resources held by this detector. It must not be used
+	 * afterwards.
+	 */
+	void shutdown();
+}
@@ -1,24 +1,84 @@
 package featureextraction;
 
-import java.awt.Point;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
+import com.bv_gruppe_d.imagej.Hyperparameter;
 import com.bv_gruppe_d.imagej.ImageData;
 
+import preprocessing.EdgeSegment;
+import preprocessing.SegmentDescriptor;
 import preprocessing.Segmenter;
+import preprocessing.TiledSegmenter;
 
 /**
  * This class uses the Hough transformation to extract ellipsis information from
  * an edge image
  */
-public class HoughTransformation {
+public class HoughTransformation implements EllipseDetector {
 	/**
 	 * All segments shorter than this number will be ignored
 	 */
 	private static final int MIN_SEGMENT_SIZE = 60;
+
+	/**
+	 * The seed of the randomized mode. It is fixed so that results can be
+	 * reproduced and compared with the exhaustive mode
+	 */
+	private static final long RANDOM_SEED = 0x5eed;
+
+	/**
+	 * The cell size (in pixels) of the grid that is used to find the points near
+	 * an ellipsis center
+	 */
+	private static final int GRID_CELL_SIZE = 8;
+
+	/**
+	 * Segments with at least this many points are split into several tasks, so
+	 * that one big segment does not keep a single core busy while the others are
+	 * idle
+	 */
+	private static final int SPLIT_SEGMENT_SIZE = 1000;
+
+	/**
+	 * How many tasks a big segment is split into per worker of the pool. More
+	 * tasks than workers allow the pool to balance the load
+	 */
+	private static final int TASKS_PER_WORKER = 4;
+
+	/**
+	 * Images with more pixels than this are segmented by the
+	 * {@link TiledSegmenter} on the pool. The tiled segmentation does almost twice
+	 * the work of the single threaded search, so it only pays off on big images
+	 * and several cores. The usual crop of
+	 * {@link com.bv_gruppe_d.imagej.Hyperparameter#ANALYSIS_REGION_SIZE} (512x512)
+	 * is segmented in a few milliseconds, which is negligible compared to the
+	 * hough transformation, so the tiled path is only taken when the analyzed
+	 * region is made bigger
+	 */
+	private static final int TILED_SEGMENTATION_PIXELS = 1024 * 1024;
+
+	/**
+	 * How the pairs of points (p1, p2) that define the major axis are chosen
+	 */
+	public enum Mode {
+		/**
+		 * Every possible pair of edge pixels is tested
+		 */
+		EXHAUSTIVE,
+		/**
+		 * Pairs of edge pixels are drawn at random until the sample budget is spent
+		 * or the best result did not improve for a while (Randomized Hough
+		 * Transform)
+		 */
+		RANDOMIZED
+	}
 	
 	private final int accumulatorThreshold;
 	private final double accumulatorAccuracy;
@@ -26,6 +86,19 @@ public class HoughTransformation {
 	private final double minMinor, maxMinor;
 
 	/**
+	 * The pool that processes the segments. It is kept for the lifetime of this
+	 * object so that the worker threads are reused between images
+	 */
+	private final ForkJoinPool pool;
+	private final boolean ownsPool;
+
+	private volatile Mode mode = Mode.EXHAUSTIVE;
+	private volatile int sampleBudget = Hyperparameter.HOUGH_RANDOM_SAMPLE_BUDGET;
+	private volatile int convergenceLimit = Hyperparameter.HOUGH_RANDOM_CONVERGENCE_LIMIT;
+
+	/**
+	 * Creates a new HoughTransformation with its own pool that uses one worker per
+	 * available processor.
 	 * 
 	 * @param accumulatorThreshold the minimum number of values in one bin to return
 	 *                             a result
@@ -36,83 +109,235 @@ public class HoughTransformation {
 	 *                             (edge to center)
 	 */
 	public HoughTransformation(int accumulatorThreshold, double accumulatorAccuracy, double min, double max) {
+		this(accumulatorThreshold, accumulatorAccuracy, min, max, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a new HoughTransformation with its own pool. The pool is released by
+	 * calling {@link #shutdown()}.
+	 * 
+	 * @param parallelism the number of segments that are processed at the same
+	 *                    time
+	 * @see #HoughTransformation(int, double, double, double)
+	 */
+	public HoughTransformation(int accumulatorThreshold, double accumulatorAccuracy, double min, double max,
+			int parallelism) {
+		this(accumulatorThreshold, accumulatorAccuracy, min, max, new ForkJoinPool(parallelism), true);
+	}
+
+	/**
+	 * Creates a new HoughTransformation that schedules its work on the given pool.
+	 * The pool is not shut down by {@link #shutdown()}, since it is owned by the
+	 * caller.
+	 * 
+	 * @param pool the pool that processes the segments
+	 * @see #HoughTransformation(int, double, double, double)
+	 */
+	public HoughTransformation(int accumulatorThreshold, double accumulatorAccuracy, double min, double max,
+			ForkJoinPool pool) {
+		this(accumulatorThreshold, accumulatorAccuracy, min, max, pool, false);
+	}
+
+	private HoughTransformation(int accumulatorThreshold, double accumulatorAccuracy, double min, double max,
+			ForkJoinPool pool, boolean ownsPool) {
 		minMajor = min;
 		maxMajor = max;
 		minMinor = min;
 		maxMinor = max;
 		this.accumulatorAccuracy = accumulatorAccuracy;
 		this.accumulatorThreshold = accumulatorThreshold;
+		this.pool = pool;
+		this.ownsPool = ownsPool;
+	}
+
+	/**
+	 * Selects how the candidate pairs are chosen. The mode is applied to all
+	 * segments that are processed after this call.
+	 * 
+	 * @param mode the new mode
+	 */
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+
+	public Mode getMode() {
+		return mode;
 	}
 
+	/**
+	 * Configures the randomized mode.
+	 * 
+	 * @param sampleBudget     the maximal number of pairs that are drawn per
+	 *                         segment
+	 * @param convergenceLimit the search in a segment stops once this many pairs in
+	 *                         a row did not improve the best result
+	 */
+	public void setRandomizedSampling(int sampleBudget, int convergenceLimit) {
+		if (sampleBudget <= 0 || convergenceLimit <= 0) {
+			throw new IllegalArgumentException("sampleBudget and convergenceLimit have to be positive");
+		}
+		this.sampleBudget = sampleBudget;
+		this.convergenceLimit = convergenceLimit;
+	}
+
+	/**
+	 * Searches for one ellipsis in every segment of the image. The segments are
+	 * processed in parallel on the pool of this object.
+	 * 
+	 * @param imageData the edge image
+	 * @return the best ellipsis of every segment in which one was found
+	 */
+	@Override
 	public List<EllipsisData> execute(ImageData imageData) {
 		// Split the image into segments (each ellipse is one segment) to speed up
 		// calculation time and improve accuracy
-		ArrayList<ArrayList<Point>> segments = new Segmenter(MIN_SEGMENT_SIZE).execute(imageData);
-		ArrayList<Thread> threads = new ArrayList<Thread>();
+		ArrayList<EdgeSegment> segments;
+		if (imageData.getImageProcessor().getPixelCount() > TILED_SEGMENTATION_PIXELS && pool.getParallelism() > 1) {
+			segments = new TiledSegmenter(MIN_SEGMENT_SIZE, pool).execute(imageData);
+		} else {
+			segments = new Segmenter(MIN_SEGMENT_SIZE).execute(imageData);
+		}
 
-		Object lock = new Object();
-		ArrayList<EllipsisData> foundEllipsisList = new ArrayList<>();
+		// Submit one task for every segment. The pool decides how many of them run at
+		// the same time
+		ArrayList<ForkJoinTask<EllipsisData>> tasks = new ArrayList<>(segments.size());
+		for (EdgeSegment segment : segments) {
+			if (canContainEllipsis(segment)) {
+				tasks.add(pool.submit(new SegmentTask(segment)));
+			}
+		}
 
-		// Create a new thread for every segment. The best result will be stored in
-		// foundEllipsisList
-		for (int i = 0; i < segments.size(); ++i) {
-			ArrayList<Point> segment = segments.get(i);
-			Thread t = new WorkerThread(lock, segment, foundEllipsisList);
-			t.setDaemon(true);
-			t.setName("HoughWorker#" + i);
-
-			// Add the thread to the list and start it
-			threads.add(t);
-			t.start();
-		}
-
-		// wait for all threads to finish
-		for (Thread t : threads) {
-			try {
-				t.join();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+		// wait for all tasks to finish and collect the best result of each segment
+		ArrayList<EllipsisData> foundEllipsisList = new ArrayList<>();
+		for (ForkJoinTask<EllipsisData> task : tasks) {
+			EllipsisData ellipsis = task.join();
+			if (ellipsis != null) {
+				foundEllipsisList.add(ellipsis);
 			}
 		}
 		System.out.println("Hough done");
 		return foundEllipsisList;
 	}
 
-	public ArrayList<EllipsisData> findEllipsis(ArrayList<Point> edgePixels) {
-		InternalLogic logic = new InternalLogic(edgePixels);
+	/**
+	 * Releases the worker threads of the pool if it was created by this object.
+	 * Calls to execute are rejected afterwards.
+	 */
+	@Override
+	public void shutdown() {
+		if (ownsPool) {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Checks with the descriptor of the segment whether the search can find
+	 * anything at all. Segments that are rejected here would not produce a single
+	 * result, so skipping them does not change the outcome
+	 */
+	private boolean canContainEllipsis(EdgeSegment segment) {
+		// Each vote comes from a different point of the segment
+		if (segment.size() <= accumulatorThreshold) {
+			return false;
+		}
+		// The two points of the major axis are 2 * a apart, which is at most the
+		// diagonal of the bounding box
+		return 0.5 * segment.getDescriptor().getDiagonal() >= minMajor;
+	}
+
+	public ArrayList<EllipsisData> findEllipsis(EdgeSegment edgePixels) {
+		InternalLogic logic = new InternalLogic(edgePixels, new PointGrid(edgePixels, GRID_CELL_SIZE));
 		logic.run();
 		return logic.results;
 	}
 
 	/**
-	 * A thread that tries to finds an ellipse in one segment and add it to the
-	 * resultList
+	 * @return the candidate with the most votes or null if the list is empty. If
+	 *         several candidates have the same number of votes the first one is
+	 *         used
+	 */
+	private static EllipsisData best(ArrayList<EllipsisData> ellipsisList) {
+		if (ellipsisList.isEmpty()) {
+			return null;
+		}
+		Collections.sort(ellipsisList);
+		return ellipsisList.get(0);
+	}
+
+	/**
+	 * A task that tries to find an ellipse in one segment and returns the best
+	 * candidate or null if there is none. Big segments are split into several
+	 * PairRangeTasks
 	 */
-	private class WorkerThread extends Thread {
-		private final Object lock;
-		private final ArrayList<Point> segment;
-		private final ArrayList<EllipsisData> resultList;
+	private class SegmentTask extends RecursiveTask<EllipsisData> {
+		private static final long serialVersionUID = 1L;
+		private final EdgeSegment segment;
 
-		public WorkerThread(Object lock, ArrayList<Point> segment, ArrayList<EllipsisData> resultList) {
-			super();
-			this.lock = lock;
+		public SegmentTask(EdgeSegment segment) {
 			this.segment = segment;
-			this.resultList = resultList;
 		}
 
 		@Override
-		public void run() {
-			ArrayList<EllipsisData> ellipsisList = findEllipsis(segment);
-			if (!ellipsisList.isEmpty()) {
-				Collections.sort(ellipsisList);
-				synchronized (lock) {
-					// Use the best candidate
-					resultList.add(ellipsisList.get(0));
-
-					System.out.print(".");
-					System.out.flush();
+		protected EllipsisData compute() {
+			final int size = segment.size();
+			if (size < SPLIT_SEGMENT_SIZE || usesRandomizedSearch(size)) {
+				return best(findEllipsis(segment));
+			}
+
+			// The work for p1 grows linearly with i1 (all p2 with i2 < i1 are tested),
+			// so the ranges are chosen to contain about the same number of pairs
+			PointGrid grid = new PointGrid(segment, GRID_CELL_SIZE);
+			int taskCount = Math.min(size, TASKS_PER_WORKER * getPool().getParallelism());
+			ArrayList<PairRangeTask> tasks = new ArrayList<>(taskCount);
+			int start = 0;
+			for (int t = 1; t <= taskCount; ++t) {
+				int end = (int) Math.round(size * Math.sqrt((double) t / taskCount));
+				if (end > start) {
+					tasks.add(new PairRangeTask(segment, grid, start, end));
+					start = end;
+				}
+			}
+			invokeAll(tasks);
+
+			// Merge the results, on a tie the range with the smaller indices wins
+			EllipsisData best = null;
+			for (PairRangeTask task : tasks) {
+				EllipsisData candidate = task.join();
+				if (candidate != null && (best == null || candidate.accumulator > best.accumulator)) {
+					best = candidate;
 				}
 			}
+			return best;
+		}
+
+		private boolean usesRandomizedSearch(int size) {
+			long pairCount = (long) size * (size - 1) / 2;
+			return mode == Mode.RANDOMIZED && pairCount > sampleBudget;
+		}
+	}
+
+	/**
+	 * A task that tests all pairs whose first point has an index between start
+	 * (inclusive) and end (exclusive). Each task has its own accumulator
+	 */
+	private class PairRangeTask extends RecursiveTask<EllipsisData> {
+		private static final long serialVersionUID = 1L;
+		private final EdgeSegment segment;
+		private final PointGrid grid;
+		private final int start, end;
+
+		public PairRangeTask(EdgeSegment segment, PointGrid grid, int start, int end) {
+			this.segment = segment;
+			this.grid = grid;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected EllipsisData compute() {
+			InternalLogic logic = new InternalLogic(segment, grid);
+			logic.runExhaustive(start, end);
+			return best(logic.results);
 		}
 	}
 
@@ -121,31 +346,99 @@ public class HoughTransformation {
 	 * on the same object on multiple threads
 	 */
 	private class InternalLogic {
-		private int i1, i2, i3;// indices of points
+		private int i1, i2;// indices of points
 
-		private ArrayList<Point> edgePixels;
+		private final int[] xs, ys;
+		private final int size;
+		private final SegmentDescriptor descriptor;
+		// The axis range narrowed to what fits into the bounding box of the segment
+		private final double maxMajor, maxMinor;
+		private PointGrid grid;
 		private ArrayList<EllipsisData> results;
 		private Accumulator accumulator;
+		// Scratch buffers for the third points near the current center
+		private final int[] candidateXs, candidateYs;
+		private final double[] minorAxes;
+		private final Mode mode;
+		private final int sampleBudget, convergenceLimit;
 
-		public InternalLogic(ArrayList<Point> edgePixels) {
-			this.edgePixels = edgePixels;
+		public InternalLogic(EdgeSegment edgePixels, PointGrid grid) {
+			xs = edgePixels.getXs();
+			ys = edgePixels.getYs();
+			size = edgePixels.size();
+			descriptor = edgePixels.getDescriptor();
+			// a can not be bigger than half of the diagonal, and b is never bigger than a
+			maxMajor = Math.min(HoughTransformation.this.maxMajor, 0.5 * descriptor.getDiagonal() + 1);
+			maxMinor = Math.min(HoughTransformation.this.maxMinor, maxMajor);
+			this.grid = grid;
 			results = new ArrayList<>();
-			accumulator = new Accumulator(minMinor, maxMinor, accumulatorAccuracy);
+			accumulator = new Accumulator(minMinor, Math.max(minMinor, maxMinor), accumulatorAccuracy);
+			candidateXs = new int[size];
+			candidateYs = new int[size];
+			minorAxes = new double[size];
+			// Copy the settings so that they do not change in the middle of a segment
+			mode = HoughTransformation.this.mode;
+			sampleBudget = HoughTransformation.this.sampleBudget;
+			convergenceLimit = HoughTransformation.this.convergenceLimit;
 		}
 
 		public void run() {
+			long pairCount = (long) size * (size - 1) / 2;
+			// Drawing more samples than there are pairs is slower than trying them all
+			if (mode == Mode.RANDOMIZED && pairCount > sampleBudget) {
+				runRandomized();
+			} else {
+				runExhaustive(0, size);
+			}
+		}
+
+		/**
+		 * Tests all pairs of p1 and p2 where the index of p1 is in the given range
+		 */
+		private void runExhaustive(int start, int end) {
 			// iterate over all possible combinations of p1 and p2
-			while (i1 < edgePixels.size()) {
-				if (edgePixels.get(i1) != null) {
-					i2 = 0;
-					while (i2 < i1) {
-						if (edgePixels.get(i2) != null) {
-							findEllipsis();
-						}
-						i2++;
+			for (i1 = start; i1 < end; ++i1) {
+				if (!reachesMinMajor(xs[i1], ys[i1])) {
+					// every p2 is too close to p1
+					continue;
+				}
+				for (i2 = 0; i2 < i1; ++i2) {
+					findEllipsis();
+				}
+			}
+		}
+
+		/**
+		 * @return false if every point of the bounding box is closer to (x, y) than
+		 *         2 * minMajor, so that no pair with this point is long enough
+		 */
+		private boolean reachesMinMajor(int x, int y) {
+			double dx = Math.max(x - descriptor.getMinX(), descriptor.getMaxX() - x);
+			double dy = Math.max(y - descriptor.getMinY(), descriptor.getMaxY() - y);
+			return 0.5 * Math.sqrt(dx * dx + dy * dy) >= minMajor;
+		}
+
+		/**
+		 * Draws random pairs of p1 and p2 until the sample budget is spent or the
+		 * best result did not improve for convergenceLimit samples
+		 */
+		private void runRandomized() {
+			Random random = new Random(RANDOM_SEED);
+			int bestVotes = 0;
+			int samplesWithoutImprovement = 0;
+
+			for (int sample = 0; sample < sampleBudget && samplesWithoutImprovement < convergenceLimit; ++sample) {
+				i1 = random.nextInt(size);
+				i2 = random.nextInt(size);
+				samplesWithoutImprovement++;
+				if (i1 != i2) {
+					int resultCount = results.size();
+					findEllipsis();
+					if (results.size() > resultCount && results.get(resultCount).accumulator > bestVotes) {
+						bestVotes = results.get(resultCount).accumulator;
+						samplesWithoutImprovement = 0;
 					}
 				}
-				i1++;
 			}
 		}
 
@@ -157,49 +450,67 @@ public class HoughTransformation {
 		 * invalidated by future updates to scikit-image):
 		 * https://github.com/scikit-image/scikit-image/blob/master/skimage/transform/_hough_transform.pyx#L101
 		 * 
+		 * Only points that are not further away from the center than a can be on the
+		 * ellipsis, so only the grid cells that overlap that disc are visited. Their
+		 * points are collected first and then processed in one batch by the
+		 * MinorAxisKernel.
 		 */
 		private void findEllipsis() {
-			Point p1 = edgePixels.get(i1);
-			Point p2 = edgePixels.get(i2);
+			final int x1 = xs[i1], y1 = ys[i1];
+			final int x2 = xs[i2], y2 = ys[i2];
 
-			double dx = p1.x - p2.x;
-			double dy = p1.y - p2.y;
+			double dx = x1 - x2;
+			double dy = y1 - y2;
 			double a = 0.5 * Math.sqrt(dx * dx + dy * dy);
 			if (a >= minMajor && a < maxMajor) {
-				Point2D.Double center = new Point2D.Double(0.5 * (p1.x + p2.x), 0.5 * (p1.y + p2.y));
-
-				for (i3 = 0; i3 < edgePixels.size(); ++i3) {
-					Point p3 = edgePixels.get(i3);
-					if (p3 != null) {
-						dx = p3.x - center.x;
-						dy = p3.y - center.y;
-						double d = Math.sqrt(dx * dx + dy * dy);
-						if (d > minMinor) {
-							dx = p3.x - p1.x;
-							dy = p3.y - p1.y;
-							double cos_tau_squared = ((a * a + d * d - dx * dx - dy * dy) / (2.0 * a * d));
-							cos_tau_squared *= cos_tau_squared;
-							// # Consider b2 > 0 and avoid division by zero
-							double k = a * a - d * d * cos_tau_squared;
-							if (k > 0.0 && cos_tau_squared < 1.0) {
-								double b = Math.sqrt(a * a * d * d * (1.0 - cos_tau_squared) / k);
-								if (b >= minMinor && b < maxMinor) {
-									accumulator.add(b);
-								}
-							}
-						}
+				Point2D.Double center = new Point2D.Double(0.5 * (x1 + x2), 0.5 * (y1 + y2));
+
+				int candidateCount = collectCandidates(center.x, center.y, a);
+				MinorAxisKernel.estimate(candidateXs, candidateYs, candidateCount, x1, y1, center.x, center.y, a,
+						minMinor, minorAxes);
+				for (int i = 0; i < candidateCount; ++i) {
+					double b = minorAxes[i];
+					// NaN fails this check as well
+					if (b >= minMinor && b < maxMinor) {
+						accumulator.add(b);
 					}
 				}
 
 				Accumulator.Max max = accumulator.findMaxAndClear();
-				if (max.votes > accumulatorThreshold) {
-					double orientation = Math.atan2(p1.x - p2.x, p1.y - p2.y);
-					double b = max.center;
+				if (max.getVotes() > accumulatorThreshold) {
+					double orientation = Math.atan2(x1 - x2, y1 - y2);
+					double b = max.getCenter();
 
-					EllipsisData e = new EllipsisData(center, a, b, max.votes, orientation);
+					EllipsisData e = new EllipsisData(center, a, b, max.getVotes(), orientation);
 					results.add(e);
 				}
 			}
 		}
+
+		/**
+		 * Copies the coordinates of all points in the grid cells that overlap the
+		 * disc around the center into the candidate buffers
+		 * 
+		 * @return the number of candidates
+		 */
+		private int collectCandidates(double centerX, double centerY, double radius) {
+			final double radiusSquared = radius * radius;
+			final int lastColumn = grid.column(centerX + radius), lastRow = grid.row(centerY + radius);
+			int count = 0;
+			for (int row = grid.row(centerY - radius); row <= lastRow; ++row) {
+				for (int column = grid.column(centerX - radius); column <= lastColumn; ++column) {
+					if (grid.distanceSquared(column, row, centerX, centerY) <= radiusSquared) {
+						final int end = grid.cellEnd(column, row);
+						for (int position = grid.cellStart(column, row); position < end; ++position) {
+							int i3 = grid.pointAt(position);
+							candidateXs[count] = xs[i3];
+							candidateYs[count] = ys[i3];
+							count++;
+						}
+					}
+				}
+			}
+			return count;
+		}
 	}
 }
@@ -0,0 +1,356 @@
+package featureextraction;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.bv_gruppe_d.imagej.ImageData;
+
+import preprocessing.EdgeSegment;
+import preprocessing.Segmenter;
+
+/**
+ * This class fits one ellipsis to every segment of an edge image with a direct
+ * least squares fit. In contrast to the hough transformation it needs only one
+ * pass over the points of a segment, but it assumes that each segment is a
+ * single (closed or partial) ellipsis contour.
+ *
+ * For an explaination of the math see: "Direct Least Square Fitting of
+ * Ellipses" (Andrew Fitzgibbon, Maurizio Pilu, Robert B. Fisher / 1999) and
+ * the numerically stable variant from "Numerically Stable Direct Least Squares
+ * Fitting of Ellipses" (Radim Halir, Jan Flusser / 1998)
+ */
+public class LeastSquaresEllipseFit implements EllipseDetector {
+	/**
+	 * All segments shorter than this number will be ignored
+	 */
+	private static final int MIN_SEGMENT_SIZE = 60;
+
+	/**
+	 * How far (in pixels) a point may be away from the fitted ellipsis to count as
+	 * a vote for it
+	 */
+	private static final double INLIER_DISTANCE = 1.0;
+
+	private final double minInlierRatio;
+	private final double minAxis, maxAxis;
+
+	/**
+	 *
+	 * @param minInlierRatio the fraction of the segment's points that have to be
+	 *                       on the fitted ellipsis to return a result
+	 * @param min            the minimal length of the ellipsis short axis (edge to
+	 *                       center)
+	 * @param max            the maximal length of the ellipsis long axis (edge to
+	 *                       center)
+	 */
+	public LeastSquaresEllipseFit(double minInlierRatio, double min, double max) {
+		this.minInlierRatio = minInlierRatio;
+		this.minAxis = min;
+		this.maxAxis = max;
+	}
+
+	/**
+	 * Fits one ellipsis to every segment of the image.
+	 *
+	 * @param imageData the edge image
+	 * @return the ellipsis of every segment that could be fitted
+	 */
+	@Override
+	public List<EllipsisData> execute(ImageData imageData) {
+		ArrayList<EdgeSegment> segments = new Segmenter(MIN_SEGMENT_SIZE).execute(imageData);
+		ArrayList<EllipsisData> foundEllipsisList = new ArrayList<>();
+		for (EdgeSegment segment : segments) {
+			EllipsisData ellipsis = fit(segment);
+			if (ellipsis != null) {
+				foundEllipsisList.add(ellipsis);
+			}
+		}
+		System.out.println("Least squares fit done");
+		return foundEllipsisList;
+	}
+
+	/**
+	 * This detector holds no resources.
+	 */
+	@Override
+	public void shutdown() {
+	}
+
+	/**
+	 * Fits an ellipsis to the points of the segment. The accumulator value of the
+	 * result is the number of points that are close to the fitted ellipsis.
+	 *
+	 * @param segment the points to fit
+	 * @return the ellipsis or null if no valid ellipsis could be fitted
+	 */
+	public EllipsisData fit(EdgeSegment segment) {
+		final int n = segment.size();
+		if (n < 6) {
+			return null;
+		}
+		final int[] xs = segment.getXs(), ys = segment.getYs();
+
+		// Move the points to the origin and scale them for numerical stability
+		double meanX = 0, meanY = 0;
+		for (int i = 0; i < n; ++i) {
+			meanX += xs[i];
+			meanY += ys[i];
+		}
+		meanX /= n;
+		meanY /= n;
+		double scale = 0;
+		for (int i = 0; i < n; ++i) {
+			scale = Math.max(scale, Math.max(Math.abs(xs[i] - meanX), Math.abs(ys[i] - meanY)));
+		}
+		if (scale == 0) {
+			return null;
+		}
+
+		// Scatter matrices of the quadratic part D1 = [x^2, xy, y^2] and the linear
+		// part D2 = [x, y, 1] of the design matrix
+		double[][] s1 = new double[3][3], s2 = new double[3][3], s3 = new double[3][3];
+		double[] d1 = new double[3], d2 = new double[3];
+		for (int i = 0; i < n; ++i) {
+			double x = (xs[i] - meanX) / scale;
+			double y = (ys[i] - meanY) / scale;
+			d1[0] = x * x;
+			d1[1] = x * y;
+			d1[2] = y * y;
+			d2[0] = x;
+			d2[1] = y;
+			d2[2] = 1;
+			for (int r = 0; r < 3; ++r) {
+				for (int c = 0; c < 3; ++c) {
+					s1[r][c] += d1[r] * d1[c];
+					s2[r][c] += d1[r] * d2[c];
+					s3[r][c] += d2[r] * d2[c];
+				}
+			}
+		}
+
+		double[][] s3Inverse = invert(s3);
+		if (s3Inverse == null) {
+			return null;
+		}
+		// T = -S3^-1 * S2^T, which gives the linear coefficients from the quadratic
+		double[][] t = new double[3][3];
+		for (int r = 0; r < 3; ++r) {
+			for (int c = 0; c < 3; ++c) {
+				for (int k = 0; k < 3; ++k) {
+					t[r][c] -= s3Inverse[r][k] * s2[c][k];
+				}
+			}
+		}
+		// M = S1 + S2 * T, reduced scatter matrix
+		double[][] m = new double[3][3];
+		for (int r = 0; r < 3; ++r) {
+			for (int c = 0; c < 3; ++c) {
+				m[r][c] = s1[r][c];
+				for (int k = 0; k < 3; ++k) {
+					m[r][c] += s2[r][k] * t[k][c];
+				}
+			}
+		}
+		// Premultiply with the inverse of the constraint matrix
+		double[][] constrained = { { 0.5 * m[2][0], 0.5 * m[2][1], 0.5 * m[2][2] },
+				{ -m[1][0], -m[1][1], -m[1][2] }, { 0.5 * m[0][0], 0.5 * m[0][1], 0.5 * m[0][2] } };
+
+		double[] quadratic = findEllipticEigenvector(constrained);
+		if (quadratic == null) {
+			return null;
+		}
+		double[] linear = new double[3];
+		for (int r = 0; r < 3; ++r) {
+			for (int k = 0; k < 3; ++k) {
+				linear[r] += t[r][k] * quadratic[k];
+			}
+		}
+
+		return toEllipsis(quadratic[0], quadratic[1], quadratic[2], linear[0], linear[1], linear[2], xs, ys, meanX,
+				meanY, scale);
+	}
+
+	/**
+	 * Converts the conic Ax^2 + Bxy + Cy^2 + Dx + Ey + F = 0 (in scaled coordinates)
+	 * to the geometric ellipsis parameters and counts the inliers
+	 */
+	private EllipsisData toEllipsis(double A, double B, double C, double D, double E, double F, int[] xs, int[] ys,
+			double meanX, double meanY, double scale) {
+		double denominator = B * B - 4 * A * C;
+		if (denominator >= 0) {
+			return null;
+		}
+		double centerX = (2 * C * D - B * E) / denominator;
+		double centerY = (2 * A * E - B * D) / denominator;
+		double centerValue = F + 0.5 * (D * centerX + E * centerY);
+
+		// The eigenvalues of the quadratic form give the axes, the eigenvector of the
+		// smaller one the direction of the major axis
+		double root = Math.sqrt(0.25 * (A - C) * (A - C) + 0.25 * B * B);
+		double lambdaSmall = 0.5 * (A + C) - Math.signum(A + C) * root;
+		double lambdaBig = 0.5 * (A + C) + Math.signum(A + C) * root;
+		double major = Math.sqrt(-centerValue / lambdaSmall) * scale;
+		double minor = Math.sqrt(-centerValue / lambdaBig) * scale;
+		if (!(minor >= minAxis && major < maxAxis)) {
+			// also filters NaN from imaginary ellipses
+			return null;
+		}
+
+		// Both rows of the quadratic form give the eigenvector, the one with the bigger
+		// diagonal difference is not dominated by rounding errors of B
+		double directionX, directionY;
+		if (Math.abs(lambdaSmall - A) >= Math.abs(lambdaSmall - C)) {
+			directionX = 0.5 * B;
+			directionY = lambdaSmall - A;
+		} else {
+			directionX = lambdaSmall - C;
+			directionY = 0.5 * B;
+		}
+		if (directionX == 0 && directionY == 0) {
+			// a circle, every direction is valid
+			directionX = 1;
+		}
+		double length = Math.sqrt(directionX * directionX + directionY * directionY);
+		double cos = directionX / length, sin = directionY / length;
+
+		Point2D.Double center = new Point2D.Double(centerX * scale + meanX, centerY * scale + meanY);
+		int inliers = countInliers(xs, ys, center, major, minor, cos, sin);
+		if (inliers < minInlierRatio * xs.length) {
+			return null;
+		}
+		// Same convention as the hough transformation: atan2(dx, dy) of the major axis
+		double orientation = Math.atan2(cos, sin);
+		return new EllipsisData(center, major, minor, inliers, orientation);
+	}
+
+	/**
+	 * Counts the points whose distance to the ellipsis (measured along the ray
+	 * from the center) is at most INLIER_DISTANCE
+	 */
+	private static int countInliers(int[] xs, int[] ys, Point2D.Double center, double a, double b, double cos,
+			double sin) {
+		int inliers = 0;
+		for (int i = 0; i < xs.length; ++i) {
+			double dx = xs[i] - center.x;
+			double dy = ys[i] - center.y;
+			double u = dx * cos + dy * sin;
+			double v = -dx * sin + dy * cos;
+			double r = Math.sqrt(u * u / (a * a) + v * v / (b * b));
+			double distance = (r > 0) ? Math.abs(1 - 1 / r) * Math.sqrt(dx * dx + dy * dy) : b;
+			if (distance <= INLIER_DISTANCE) {
+				inliers++;
+			}
+		}
+		return inliers;
+	}
+
+	/**
+	 * Finds the real eigenvector v of the 3x3 matrix that fulfills the ellipsis
+	 * constraint 4 * v0 * v2 - v1^2 > 0
+	 *
+	 * @return the eigenvector or null if there is none
+	 */
+	private static double[] findEllipticEigenvector(double[][] m) {
+		// characteristic polynomial x^3 + p2 x^2 + p1 x + p0
+		double p2 = -(m[0][0] + m[1][1] + m[2][2]);
+		double p1 = m[0][0] * m[1][1] - m[0][1] * m[1][0] + m[0][0] * m[2][2] - m[0][2] * m[2][0]
+				+ m[1][1] * m[2][2] - m[1][2] * m[2][1];
+		double p0 = -determinant(m);
+
+		double[] eigenvalues = new double[3];
+		int count = solveCubic(p2, p1, p0, eigenvalues);
+		double[] best = null;
+		double bestCondition = 0;
+		for (int i = 0; i < count; ++i) {
+			double[] v = nullVector(m, eigenvalues[i]);
+			if (v != null) {
+				double condition = 4 * v[0] * v[2] - v[1] * v[1];
+				if (condition > bestCondition) {
+					bestCondition = condition;
+					best = v;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Calculates a vector that is orthogonal to all rows of (m - lambda * I) as
+	 * the biggest cross product of two of its rows
+	 */
+	private static double[] nullVector(double[][] m, double lambda) {
+		double[][] rows = new double[3][3];
+		for (int r = 0; r < 3; ++r) {
+			for (int c = 0; c < 3; ++c) {
+				rows[r][c] = m[r][c] - ((r == c) ? lambda : 0);
+			}
+		}
+		double[] best = null;
+		double bestLength = 0;
+		for (int first = 0; first < 3; ++first) {
+			double[] a = rows[first], b = rows[(first + 1) % 3];
+			double[] cross = { a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2], a[0] * b[1] - a[1] * b[0] };
+			double length = Math.sqrt(cross[0] * cross[0] + cross[1] * cross[1] + cross[2] * cross[2]);
+			if (length > bestLength) {
+				bestLength = length;
+				best = cross;
+			}
+		}
+		if (best != null) {
+			for (int i = 0; i < 3; ++i) {
+				best[i] /= bestLength;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Finds the real roots of x^3 + b x^2 + c x + d = 0 (see "Numerical Recipes",
+	 * chapter 5.6)
+	 *
+	 * @return the number of real roots written to roots
+	 */
+	private static int solveCubic(double b, double c, double d, double[] roots) {
+		double q = (b * b - 3 * c) / 9;
+		double r = (2 * b * b * b - 9 * b * c + 27 * d) / 54;
+		double qCubed = q * q * q;
+		if (r * r < qCubed) {
+			double theta = Math.acos(r / Math.sqrt(qCubed));
+			double factor = -2 * Math.sqrt(q);
+			roots[0] = factor * Math.cos(theta / 3) - b / 3;
+			roots[1] = factor * Math.cos((theta + 2 * Math.PI) / 3) - b / 3;
+			roots[2] = factor * Math.cos((theta - 2 * Math.PI) / 3) - b / 3;
+			return 3;
+		}
+		double a = -Math.signum(r) * Math.cbrt(Math.abs(r) + Math.sqrt(r * r - qCubed));
+		double bb = (a == 0) ? 0 : q / a;
+		roots[0] = a + bb - b / 3;
+		return 1;
+	}
+
+	private static double determinant(double[][] m) {
+		return m[0][0] * (m[1][1] * m[2][2] - m[1][2] * m[2][1]) - m[0][1] * (m[1][0] * m[2][2] - m[1][2] * m[2][0])
+				+ m[0][2] * (m[1][0] * m[2][1] - m[1][1] * m[2][0]);
+	}
+
+	/**
+	 * @return the inverse of the 3x3 matrix or null if it is singular
+	 */
+	private static double[][] invert(double[][] m) {
+		double det = determinant(m);
+		if (Math.abs(det) < 1e-12) {
+			return null;
+		}
+		double[][] inverse = new double[3][3];
+		for (int r = 0; r < 3; ++r) {
+			for (int c = 0; c < 3; ++c) {
+				// adjugate: cofactor of the transposed position
+				int r1 = (c + 1) % 3, r2 = (c + 2) % 3;
+				int c1 = (r + 1) % 3, c2 = (r + 2) % 3;
+				inverse[r][c] = (m[r1][c1] * m[r2][c2] - m[r1][c2] * m[r2][c1]) / det;
+			}
+		}
+		return inverse;
+	}
+}
@@ -0,0 +1,51 @@
+package featureextraction;
+
+/**
+ * Calculates the minor axis candidates of the hough transformation for a whole
+ * batch of third points at once. The loop works on primitive arrays only and
+ * has no branches in its body, which allows the JIT compiler to unroll it and
+ * use SIMD instructions where the platform supports them.
+ *
+ * For an explaination of the math see: "A New Efficient Ellipse Detection
+ * Method" (Yonghong Xie Qiang , Qiang Ji / 2002)
+ */
+public final class MinorAxisKernel {
+
+	private MinorAxisKernel() {
+	}
+
+	/**
+	 * Calculates the minor axis b of the ellipsis through p1 and every p3. The
+	 * ellipsis is defined by its center and the major axis a.
+	 *
+	 * @param x3          the x coordinates of the third points
+	 * @param y3          the y coordinates of the third points
+	 * @param count       how many entries of x3 and y3 are used
+	 * @param x1          the x coordinate of p1
+	 * @param y1          the y coordinate of p1
+	 * @param centerX     the x coordinate of the ellipsis center
+	 * @param centerY     the y coordinate of the ellipsis center
+	 * @param a           the major axis (edge to center)
+	 * @param minDistance points that are not further away from the center than
+	 *                    this are ignored
+	 * @param minorAxes   receives the minor axis for every third point or NaN if
+	 *                    the point can not be on the ellipsis
+	 */
+	public static void estimate(int[] x3, int[] y3, int count, int x1, int y1, double centerX, double centerY,
+			double a, double minDistance, double[] minorAxes) {
+		for (int i = 0; i < count; ++i) {
+			double dx = x3[i] - centerX;
+			double dy = y3[i] - centerY;
+			double d = Math.sqrt(dx * dx + dy * dy);
+			dx = x3[i] - x1;
+			dy = y3[i] - y1;
+			double cos_tau_squared = ((a * a + d * d - dx * dx - dy * dy) / (2.0 * a * d));
+			cos_tau_squared *= cos_tau_squared;
+			// # Consider b2 > 0 and avoid division by zero
+			double k = a * a - d * d * cos_tau_squared;
+			double b = Math.sqrt(a * a * d * d * (1.0 - cos_tau_squared) / k);
+			boolean isValid = d > minDistance && d <= a && k > 0.0 && cos_tau_squared < 1.0;
+			minorAxes[i] = isValid ? b : Double.NaN;
+		}
+	}
+}
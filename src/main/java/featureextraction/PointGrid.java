@@ -0,0 +1,130 @@
+package featureextraction;
+
+import preprocessing.EdgeSegment;
+
+/**
+ * A uniform grid over the points of one segment. Each point is sorted into the
+ * cell that contains it, so that all points near a location can be found
+ * without looking at the whole segment.
+ *
+ * The cells are stored in one array (sorted by cell) together with the start
+ * index of every cell, which keeps the memory contiguous and the grid
+ * immutable after construction.
+ */
+public class PointGrid {
+	private final int minX, minY, cellSize;
+	private final int columns, rows;
+	private final int[] cellStart;
+	private final int[] pointIndices;
+
+	/**
+	 * Sorts the points into a grid.
+	 *
+	 * @param segment  the points of the segment
+	 * @param cellSize the width and height of one cell in pixels
+	 */
+	public PointGrid(EdgeSegment segment, int cellSize) {
+		if (cellSize <= 0) {
+			throw new IllegalArgumentException("cellSize has to be positive");
+		}
+		this.cellSize = cellSize;
+
+		final int[] xs = segment.getXs(), ys = segment.getYs();
+		final int count = segment.size();
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+		for (int i = 0; i < count; ++i) {
+			minX = Math.min(minX, xs[i]);
+			minY = Math.min(minY, ys[i]);
+			maxX = Math.max(maxX, xs[i]);
+			maxY = Math.max(maxY, ys[i]);
+		}
+		if (count == 0) {
+			minX = minY = maxX = maxY = 0;
+		}
+		this.minX = minX;
+		this.minY = minY;
+		columns = (maxX - minX) / cellSize + 1;
+		rows = (maxY - minY) / cellSize + 1;
+
+		// Count the points per cell, then turn the counts into start indices
+		cellStart = new int[columns * rows + 1];
+		for (int i = 0; i < count; ++i) {
+			cellStart[cellIndex(xs[i], ys[i]) + 1]++;
+		}
+		for (int cell = 0; cell < columns * rows; ++cell) {
+			cellStart[cell + 1] += cellStart[cell];
+		}
+
+		// Place the points, keeping their original order inside each cell
+		pointIndices = new int[count];
+		int[] nextFree = new int[columns * rows];
+		System.arraycopy(cellStart, 0, nextFree, 0, nextFree.length);
+		for (int i = 0; i < count; ++i) {
+			pointIndices[nextFree[cellIndex(xs[i], ys[i])]++] = i;
+		}
+	}
+
+	private int cellIndex(int x, int y) {
+		return ((y - minY) / cellSize) * columns + (x - minX) / cellSize;
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return the column that contains x, clamped to the grid
+	 */
+	public int column(double x) {
+		return clamp((int) Math.floor((x - minX) / cellSize), columns);
+	}
+
+	/**
+	 * @return the row that contains y, clamped to the grid
+	 */
+	public int row(double y) {
+		return clamp((int) Math.floor((y - minY) / cellSize), rows);
+	}
+
+	private static int clamp(int value, int count) {
+		return Math.min(Math.max(value, 0), count - 1);
+	}
+
+	/**
+	 * Calculates the squared distance between a location and the nearest point of
+	 * a cell. It is used to skip cells that do not overlap a disc.
+	 */
+	public double distanceSquared(int column, int row, double x, double y) {
+		double left = minX + column * cellSize, top = minY + row * cellSize;
+		// cells contain the integer coordinates left ... left + cellSize - 1
+		double dx = Math.max(0, Math.max(left - x, x - (left + cellSize - 1)));
+		double dy = Math.max(0, Math.max(top - y, y - (top + cellSize - 1)));
+		return dx * dx + dy * dy;
+	}
+
+	/**
+	 * @return the first position of the cell, to be used with {@link #pointAt(int)}
+	 */
+	public int cellStart(int column, int row) {
+		return cellStart[row * columns + column];
+	}
+
+	/**
+	 * @return the position after the last point of the cell
+	 */
+	public int cellEnd(int column, int row) {
+		return cellStart[row * columns + column + 1];
+	}
+
+	/**
+	 * @return the index in the segment of the point at the given position
+	 */
+	public int pointAt(int position) {
+		return pointIndices[position];
+	}
+}
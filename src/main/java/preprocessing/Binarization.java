@@ -1,5 +1,6 @@
 package preprocessing;
 
+import com.bv_gruppe_d.imagej.Hyperparameter;
 import com.bv_gruppe_d.imagej.ImageData;
 import ij.process.ImageProcessor;
 
@@ -12,19 +13,86 @@ import ij.process.ImageProcessor;
 public abstract class Binarization {
 	private static final int WHITE = 0xFFFFFF, BLACK = 0x000000;
 
+	/**
+	 * All pixels with at least this value become white
+	 */
+	static final int THRESHOLD = 128;
+
+	/**
+	 * The dynamic range of the standard deviation in the Sauvola threshold, half
+	 * of the range of the pixel values
+	 */
+	private static final double SAUVOLA_RANGE = 128;
+
+	/**
+	 * How the threshold of a pixel is chosen
+	 */
+	public enum Mode {
+		/**
+		 * The same threshold of 128 for all pixels
+		 */
+		FIXED,
+		/**
+		 * The mean value of the whole image, from its histogram
+		 */
+		GLOBAL_MEAN,
+		/**
+		 * The mean value of the window around the pixel minus
+		 * {@link Hyperparameter#BINARIZATION_MEAN_OFFSET}
+		 */
+		LOCAL_MEAN,
+		/**
+		 * mean * (1 + k * (deviation / 128 - 1)) of the window around the pixel
+		 * (Sauvola and Pietikainen, "Adaptive document image binarization", 2000),
+		 * with k = {@link Hyperparameter#BINARIZATION_SAUVOLA_K}
+		 */
+		SAUVOLA
+	}
+
 
 	/**
-	 * Main function, it manipulates the ImageProcessor into binary image
+	 * Main function, it manipulates the ImageProcessor into binary image with the fixed threshold
 	 * @param imageData The object to be binarized.
 	 * @return Binarized ImageData object result depends on selected function
 	 */
 	public static ImageData execute(ImageData imageData) {
-		ImageProcessor imageProcessor = imageData.getImageProcessor();
+		return execute(imageData, THRESHOLD);
+	}
 
-		int threshholdinc = 128;//getMean(imageProcessor);
+	/**
+	 * Binarizes the image with the threshold chosen by the mode. For the local
+	 * modes the windows are {@link Hyperparameter#BINARIZATION_WINDOW_SIZE} pixels
+	 * wide (cut at the image border). Their sums are read from integral images, so
+	 * the cost per pixel does not depend on the size of the window.
+	 * @param imageData The object to be binarized.
+	 * @param mode How the threshold is chosen.
+	 * @param histogram The histogram of the image, only used by GLOBAL_MEAN.
+	 * @return Binarized ImageData object
+	 */
+	public static ImageData execute(ImageData imageData, Mode mode, Histogram histogram) {
+		switch (mode) {
+		case FIXED:
+			return execute(imageData);
+		case GLOBAL_MEAN:
+			return execute(imageData, (int) Math.ceil(histogram.getMean()));
+		case LOCAL_MEAN:
+		case SAUVOLA:
+			executeLocal(imageData.getImageProcessor(), mode);
+			return imageData;
+		default:
+			throw new RuntimeException("Unknown mode: " + mode);
+		}
+	}
 
-		for (int x = 0; x < imageProcessor.getWidth(); x++) {
-			for (int y = 0; y < imageProcessor.getHeight(); y++) {
+	private static ImageData execute(ImageData imageData, int threshholdinc) {
+		ImageProcessor imageProcessor = imageData.getImageProcessor();
+		byte[] pixels = PixelKernels.bytePixels(imageProcessor);
+		if (pixels != null) {
+			PixelKernels.applyTable(pixels, PixelKernels.thresholdTable(threshholdinc, false));
+			return imageData;
+		}
+		for (int y = 0; y < imageProcessor.getHeight(); y++) {
+			for (int x = 0; x < imageProcessor.getWidth(); x++) {
 
 				int binarizedPixelValue = imageProcessor.get(x,y) >= threshholdinc ? WHITE : BLACK;
 				imageProcessor.set(x, y, binarizedPixelValue);
@@ -32,4 +100,62 @@ public abstract class Binarization {
 		}
 		return imageData;
 	}
+
+	/**
+	 * Compares every pixel with a threshold computed from the mean and the
+	 * standard deviation of the window around it.
+	 */
+	private static void executeLocal(ImageProcessor imageProcessor, Mode mode) {
+		final int w = imageProcessor.getWidth(), h = imageProcessor.getHeight();
+		final int radius = Hyperparameter.BINARIZATION_WINDOW_SIZE / 2;
+		byte[] pixels = PixelKernels.bytePixels(imageProcessor);
+
+		// sums[(y + 1) * (w + 1) + x + 1] is the sum of all pixels (x', y') with x' <= x and y' <= y
+		long[] sums = new long[(w + 1) * (h + 1)];
+		long[] squareSums = new long[(w + 1) * (h + 1)];
+		for (int y = 0; y < h; y++) {
+			long rowSum = 0, rowSquareSum = 0;
+			for (int x = 0; x < w; x++) {
+				int value = (pixels != null) ? pixels[y * w + x] & 0xff : imageProcessor.get(x, y);
+				rowSum += value;
+				rowSquareSum += (long) value * value;
+				int index = (y + 1) * (w + 1) + x + 1;
+				sums[index] = sums[index - (w + 1)] + rowSum;
+				squareSums[index] = squareSums[index - (w + 1)] + rowSquareSum;
+			}
+		}
+
+		for (int y = 0; y < h; y++) {
+			final int top = Math.max(0, y - radius), bottom = Math.min(h, y + radius + 1);
+			for (int x = 0; x < w; x++) {
+				final int left = Math.max(0, x - radius), right = Math.min(w, x + radius + 1);
+				final double count = (double) (bottom - top) * (right - left);
+				final double mean = windowSum(sums, w, left, top, right, bottom) / count;
+
+				double threshold;
+				if (mode == Mode.SAUVOLA) {
+					double variance = windowSum(squareSums, w, left, top, right, bottom) / count - mean * mean;
+					double deviation = Math.sqrt(Math.max(0, variance));
+					threshold = mean * (1 + Hyperparameter.BINARIZATION_SAUVOLA_K * (deviation / SAUVOLA_RANGE - 1));
+				} else {
+					threshold = mean - Hyperparameter.BINARIZATION_MEAN_OFFSET;
+				}
+
+				if (pixels != null) {
+					pixels[y * w + x] = ((pixels[y * w + x] & 0xff) >= threshold) ? PixelKernels.WHITE : PixelKernels.BLACK;
+				} else {
+					imageProcessor.set(x, y, imageProcessor.get(x, y) >= threshold ? WHITE : BLACK);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the sum of the pixels from (left, top) until (right, bottom) (both exclusive)
+	 */
+	private static long windowSum(long[] sums, int w, int left, int top, int right, int bottom) {
+		final int stride = w + 1;
+		return sums[bottom * stride + right] - sums[top * stride + right] - sums[bottom * stride + left]
+				+ sums[top * stride + left];
+	}
 }
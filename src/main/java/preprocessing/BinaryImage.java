@@ -0,0 +1,367 @@
+package preprocessing;
+
+import java.util.concurrent.ForkJoinPool;
+
+import preprocessing.MorphologicalFiltering.StructureElement;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * A black and white image with one bit per pixel. The image is stored row by
+ * row, 64 pixels in each long (pixel x of a row is the bit x % 64 of the word
+ * x / 64), so that invert, xor, erode and dilate work on 64 pixels at once.
+ *
+ * The bits right of the last column of a row are always 0.
+ *
+ * The methods with a ForkJoinPool parameter split the image into horizontal
+ * stripes and process them in parallel. Their results are identical to the
+ * ones without a pool.
+ */
+public class BinaryImage {
+	private final int width, height;
+	private final int wordsPerRow;
+	private final long[] bits;
+
+	/**
+	 * Creates a new image where every pixel is black. The memory is taken from
+	 * the {@link BufferPool} of the current thread
+	 */
+	public BinaryImage(int width, int height) {
+		this.width = width;
+		this.height = height;
+		wordsPerRow = (width + 63) >>> 6;
+		bits = BufferPool.borrowLongs(wordsPerRow * height, true);
+	}
+
+	/**
+	 * Converts an image into a binary image. Pixels with a value above 127 are
+	 * white, like in the other steps of the {@link MorphologicalFiltering}
+	 */
+	public static BinaryImage fromProcessor(ImageProcessor ip) {
+		if (ip instanceof ByteProcessor) {
+			boolean[] white = new boolean[256];
+			for (int value = 128; value < white.length; value++) {
+				white[value] = true;
+			}
+			return fromProcessor((ByteProcessor) ip, white);
+		}
+
+		BinaryImage image = new BinaryImage(ip.getWidth(), ip.getHeight());
+		for (int y = 0; y < image.height; y++) {
+			for (int x = 0; x < image.width; x++) {
+				image.set(x, y, ip.get(x, y) > 127);
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Converts an image into a binary image in one pass over its pixels
+	 *
+	 * @param white for each of the 256 pixel values whether it becomes white
+	 */
+	static BinaryImage fromProcessor(ByteProcessor ip, boolean[] white) {
+		return fromProcessor(ip, white, null);
+	}
+
+	/**
+	 * @param pool the pool for the stripes or null to use the calling thread
+	 * @see #fromProcessor(ByteProcessor, boolean[])
+	 */
+	static BinaryImage fromProcessor(ByteProcessor ip, boolean[] white, ForkJoinPool pool) {
+		BinaryImage image = new BinaryImage(ip.getWidth(), ip.getHeight());
+		byte[] pixels = (byte[]) ip.getPixels();
+		Stripes.run(pool, image.height, (firstRow, endRow) -> {
+			for (int y = firstRow; y < endRow; y++) {
+				final int row = y * image.width, rowWord = y * image.wordsPerRow;
+				for (int x = 0; x < image.width; x++) {
+					if (white[pixels[row + x] & 0xff]) {
+						image.bits[rowWord + (x >>> 6)] |= 1L << x;
+					}
+				}
+			}
+		});
+		return image;
+	}
+
+	/**
+	 * Writes this image into an image processor of the same size. White pixels
+	 * get the value 255, black ones 0
+	 */
+	public void writeTo(ImageProcessor ip) {
+		writeTo(ip, null);
+	}
+
+	/**
+	 * @param pool the pool for the stripes or null to use the calling thread
+	 * @see #writeTo(ImageProcessor)
+	 */
+	public void writeTo(ImageProcessor ip, ForkJoinPool pool) {
+		checkSize(ip.getWidth(), ip.getHeight());
+		if (ip instanceof ByteProcessor) {
+			byte[] pixels = (byte[]) ip.getPixels();
+			Stripes.run(pool, height, (firstRow, endRow) -> {
+				for (int y = firstRow; y < endRow; y++) {
+					final int row = y * width, rowWord = y * wordsPerRow;
+					for (int x = 0; x < width; x++) {
+						pixels[row + x] = (byte) (-((bits[rowWord + (x >>> 6)] >>> x) & 1));
+					}
+				}
+			});
+		} else {
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					ip.set(x, y, get(x, y) ? 0xFFFFFF : 0x000000);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return a new ByteProcessor with the content of this image
+	 */
+	public ByteProcessor toProcessor() {
+		ByteProcessor ip = new ByteProcessor(width, height);
+		writeTo(ip);
+		return ip;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public boolean get(int x, int y) {
+		// the shift only uses the lowest 6 bits of x
+		return (bits[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+	}
+
+	public void set(int x, int y, boolean white) {
+		if (white) {
+			bits[y * wordsPerRow + (x >>> 6)] |= 1L << x;
+		} else {
+			bits[y * wordsPerRow + (x >>> 6)] &= ~(1L << x);
+		}
+	}
+
+	/**
+	 * Returns the memory of this image to the {@link BufferPool} of the current
+	 * thread. The image must not be used afterwards
+	 */
+	void release() {
+		BufferPool.release(bits);
+	}
+
+	public BinaryImage duplicate() {
+		BinaryImage copy = new BinaryImage(width, height);
+		System.arraycopy(bits, 0, copy.bits, 0, bits.length);
+		return copy;
+	}
+
+	/**
+	 * Turns every white pixel black and every black pixel white
+	 */
+	public void invert() {
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = ~bits[i];
+		}
+		clearPadding();
+	}
+
+	/**
+	 * Sets every pixel to the XOR of itself and the same pixel of the other image
+	 */
+	public void xor(BinaryImage other) {
+		checkSize(other.width, other.height);
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] ^= other.bits[i];
+		}
+	}
+
+	/**
+	 * Dilates the image with the same result as
+	 * {@link MorphologicalFiltering#dilate(ImageProcessor, ImageProcessor, StructureElement)}
+	 *
+	 * @return a new image, this one is not modified
+	 */
+	public BinaryImage dilate(StructureElement structureElement) {
+		return dilate(structureElement, null);
+	}
+
+	/**
+	 * @param pool the pool for the stripes or null to use the calling thread
+	 * @see #dilate(StructureElement)
+	 */
+	public BinaryImage dilate(StructureElement structureElement, ForkJoinPool pool) {
+		return apply(structureElement, true, pool);
+	}
+
+	/**
+	 * Erodes the image with the same result as
+	 * {@link MorphologicalFiltering#erode(ImageProcessor, ImageProcessor, StructureElement)}
+	 *
+	 * @return a new image, this one is not modified
+	 */
+	public BinaryImage erode(StructureElement structureElement) {
+		return erode(structureElement, null);
+	}
+
+	/**
+	 * @param pool the pool for the stripes or null to use the calling thread
+	 * @see #erode(StructureElement)
+	 */
+	public BinaryImage erode(StructureElement structureElement, ForkJoinPool pool) {
+		return apply(structureElement, false, pool);
+	}
+
+	/**
+	 * Each stripe computes the windows whose top row is in the stripe. It reads
+	 * the h - 1 rows below the stripe as well (the halo) and writes only the rows
+	 * of its windows, moved by the anchor, so the stripes do not overlap.
+	 */
+	private BinaryImage apply(StructureElement structureElement, boolean dilate, ForkJoinPool pool) {
+		// same window positions as the MorphologicalFiltering
+		final int maxX = width - structureElement.getWidth(), maxY = height - structureElement.getHeight();
+		BinaryImage result = new BinaryImage(width, height);
+		if (maxX <= 0 || maxY <= 0) {
+			return result;
+		}
+		Stripes.run(pool, maxY, (firstRow, endRow) -> {
+			if (structureElement.isRectangle()) {
+				applyRectangle(structureElement, dilate, result, firstRow, endRow);
+			} else {
+				applyMask(structureElement, dilate, result, firstRow, endRow);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Combines the pixels of every w x h window with OR (dilate) or AND (erode).
+	 * Both are done separately for the rows and the columns. A window of the
+	 * length n is built from two overlapping windows of the length n / 2, so each
+	 * direction needs about log2(n) shifted word operations per 64 pixels.
+	 *
+	 * Only the windows with a top row between firstRow and endRow (exclusive)
+	 * are written into the result.
+	 */
+	private void applyRectangle(StructureElement structureElement, boolean dilate, BinaryImage result, int firstRow,
+			int endRow) {
+		final int w = structureElement.getWidth(), h = structureElement.getHeight();
+		final int maxX = width - w;
+		// the rows of the stripe and its halo
+		final int rows = endRow - firstRow + h - 1;
+
+		// Afterwards the bit x of a row is the combination of the pixels x ... x + w - 1
+		long[] windows = BufferPool.borrowLongs(rows * wordsPerRow, false);
+		System.arraycopy(bits, firstRow * wordsPerRow, windows, 0, rows * wordsPerRow);
+		for (int span = 1; span < w;) {
+			int step = Math.min(span, w - span);
+			for (int y = 0; y < rows; y++) {
+				combineShiftedRow(windows, y * wordsPerRow, step, dilate);
+			}
+			span += step;
+		}
+
+		// Afterwards the row y is the combination of the rows y ... y + h - 1
+		for (int span = 1; span < h;) {
+			int step = Math.min(span, h - span);
+			final int offset = step * wordsPerRow;
+			// rows below are read before they are changed
+			for (int i = 0; i + offset < windows.length; i++) {
+				windows[i] = dilate ? windows[i] | windows[i + offset] : windows[i] & windows[i + offset];
+			}
+			span += step;
+		}
+
+		// Move the window (x, y) to its anchor and drop all that are not tested
+		final int anchorX = structureElement.getAnchorX(), anchorY = structureElement.getAnchorY();
+		final int fullWords = maxX >>> 6;
+		final long lastWordMask = (1L << maxX) - 1;// only used if maxX % 64 != 0
+		for (int y = 0; y < endRow - firstRow; y++) {
+			final int offset = y * wordsPerRow;
+			for (int k = fullWords; k < wordsPerRow; k++) {
+				windows[offset + k] &= (k == fullWords && (maxX & 63) != 0) ? lastWordMask : 0;
+			}
+			shiftLeftRow(windows, offset, result.bits, (firstRow + y + anchorY) * wordsPerRow, anchorX);
+		}
+		BufferPool.release(windows);
+	}
+
+	/**
+	 * Replaces each pixel x of the row with its combination with pixel x + step.
+	 * Pixels right of the row count as black
+	 */
+	private void combineShiftedRow(long[] words, int offset, int step, boolean dilate) {
+		final int q = step >>> 6, s = step & 63;
+		for (int k = 0; k < wordsPerRow; k++) {
+			// the words k + q and k + q + 1 are read before they are changed
+			long shifted = 0;
+			if (k + q < wordsPerRow) {
+				shifted = words[offset + k + q] >>> s;
+				if (s != 0 && k + q + 1 < wordsPerRow) {
+					shifted |= words[offset + k + q + 1] << (64 - s);
+				}
+			}
+			words[offset + k] = dilate ? words[offset + k] | shifted : words[offset + k] & shifted;
+		}
+	}
+
+	/**
+	 * ORs the source row moved right by shift pixels into the destination row.
+	 * Pixels that move past the last word are dropped
+	 */
+	private void shiftLeftRow(long[] source, int sourceOffset, long[] destination, int destinationOffset, int shift) {
+		final int q = shift >>> 6, s = shift & 63;
+		for (int k = wordsPerRow - 1; k >= q; k--) {
+			long shifted = source[sourceOffset + k - q] << s;
+			if (s != 0 && k - q - 1 >= 0) {
+				shifted |= source[sourceOffset + k - q - 1] >>> (64 - s);
+			}
+			destination[destinationOffset + k] |= shifted;
+		}
+	}
+
+	/**
+	 * The pixel by pixel version for masks that are not rectangles
+	 */
+	private void applyMask(StructureElement structureElement, boolean dilate, BinaryImage result, int firstRow,
+			int endRow) {
+		final int threshold = dilate ? 1 : structureElement.getCount();
+		final int maxX = width - structureElement.getWidth();
+		for (int y = firstRow; y < endRow; y++) {
+			for (int x = 0; x < maxX; x++) {
+				int sum = 0;
+				for (int i = 0; i < structureElement.getWidth(); i++) {
+					for (int j = 0; j < structureElement.getHeight(); j++) {
+						if (get(x + i, y + j) && structureElement.get(i, j)) {
+							sum++;
+						}
+					}
+				}
+				if (sum >= threshold) {
+					result.set(x + structureElement.getAnchorX(), y + structureElement.getAnchorY(), true);
+				}
+			}
+		}
+	}
+
+	private void clearPadding() {
+		if ((width & 63) != 0) {
+			final long mask = (1L << width) - 1;
+			for (int i = wordsPerRow - 1; i < bits.length; i += wordsPerRow) {
+				bits[i] &= mask;
+			}
+		}
+	}
+
+	private void checkSize(int otherWidth, int otherHeight) {
+		if (otherWidth != width || otherHeight != height) {
+			throw new IllegalArgumentException("The images must have the same size");
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package preprocessing;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Keeps the scratch buffers of the preprocessing stages for reuse, so that a
+ * batch of images of the same size does not allocate new full size arrays for
+ * every image. These are the bit planes of the {@link BinaryImage}s and the
+ * window buffers of the dilation and erosion, the only full size arrays the
+ * chain needs apart from its result. Each thread has its own pool, so borrowing and returning needs no
+ * synchronization. The buffers are kept by their length, which is fixed by the
+ * dimensions of the image.
+ *
+ * A buffer must only be returned once and must not be used afterwards. Buffers
+ * that are not returned are simply collected by the garbage collector.
+ */
+final class BufferPool {
+	/**
+	 * How many buffers of one length are kept at most
+	 */
+	private static final int BUFFERS_PER_LENGTH = 4;
+
+	/**
+	 * How many different lengths are kept at most. If images of more sizes are
+	 * processed the pool is emptied, so it cannot grow without limit
+	 */
+	private static final int MAX_LENGTHS = 16;
+
+	private static final ThreadLocal<BufferPool> POOLS = ThreadLocal.withInitial(BufferPool::new);
+
+	// Never contains anything, only used to avoid null checks
+	private static final ArrayDeque<long[]> EMPTY_LONGS = new ArrayDeque<>(0);
+
+	private final HashMap<Integer, ArrayDeque<long[]>> longBuffers = new HashMap<>();
+
+	private BufferPool() {
+	}
+
+	/**
+	 * @param cleared if true all values of the buffer are 0, otherwise it may
+	 *                contain anything
+	 * @return a buffer with the given length from the pool of the current thread
+	 */
+	static long[] borrowLongs(int length, boolean cleared) {
+		long[] buffer = POOLS.get().longBuffers.getOrDefault(length, EMPTY_LONGS).poll();
+		if (buffer == null) {
+			return new long[length];
+		}
+		if (cleared) {
+			Arrays.fill(buffer, 0);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool of the current thread
+	 */
+	static void release(long[] buffer) {
+		BufferPool pool = POOLS.get();
+		add(pool.longBuffers, buffer.length, buffer);
+	}
+
+	private static void add(HashMap<Integer, ArrayDeque<long[]>> buffers, int length, long[] buffer) {
+		ArrayDeque<long[]> queue = buffers.get(length);
+		if (queue == null) {
+			if (buffers.size() >= MAX_LENGTHS) {
+				buffers.clear();
+			}
+			queue = new ArrayDeque<>(BUFFERS_PER_LENGTH);
+			buffers.put(length, queue);
+		}
+		if (queue.size() < BUFFERS_PER_LENGTH) {
+			queue.push(buffer);
+		}
+	}
+}
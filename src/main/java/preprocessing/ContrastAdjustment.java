@@ -17,8 +17,21 @@ public abstract class ContrastAdjustment {
 	 * @return An image with adjusted pixel values.
 	 */
 	public static ImageData execute(ImageData imageData) {
+		execute(imageData, Histogram.of(imageData.getImageProcessor()));
+		return imageData;
+	}
+
+	/**
+	 * Adjusts the pixel values like {@link #execute(ImageData)} with a histogram that is already known.
+	 * Only 256 different pixel values exist, so each of them is adjusted once and the pixels are
+	 * replaced in one pass through the resulting lookup table.
+	 * @param imageData The image to process.
+	 * @param histogram The histogram of the image.
+	 * @return The histogram of the adjusted image. It is derived from the given one without
+	 * counting the pixels again.
+	 */
+	public static Histogram execute(ImageData imageData, Histogram histogram) {
 		
-		int[] histogram = imageData.getImageProcessor().getHistogram();
 		int imageHeight = imageData.getImageProcessor().getHeight();
 		int imageWidth = imageData.getImageProcessor().getWidth();
 		ImageProcessor imageProcessor = imageData.getImageProcessor();
@@ -27,17 +40,56 @@ public abstract class ContrastAdjustment {
 		int calculatedHigh = calculateHighestModifiedPixelValue(imageProcessor, histogram);
 		
 		double scalingFactor = (double)(max) / (calculatedHigh - calculatedLow);	
+		byte[] pixels = PixelKernels.bytePixels(imageProcessor);
+		if (pixels != null) {
+			int[] lookupTable = createLookupTable(calculatedLow, scalingFactor);
+			PixelKernels.applyTable(pixels, PixelKernels.toByteTable(lookupTable));
+			return histogram.map(lookupTable);
+		}
+		// Other image types may have more than 256 values
 			for (int h = 0; h < imageHeight; h++) {
 				for (int w = 0; w < imageWidth; w++) {
 					int oldPixelValue = imageProcessor.getPixel(w, h);
 					
-					int newPixelValue = (int) (min + (oldPixelValue - calculatedLow) * scalingFactor);
-					newPixelValue = Math.min(Math.max(min, newPixelValue), max);
-					imageProcessor.putPixel(w, h, newPixelValue);
+					imageProcessor.putPixel(w, h, stretch(oldPixelValue, calculatedLow, scalingFactor));
 				}
 		}
 		
-		return imageData;
+		return Histogram.of(imageProcessor);
+	}
+
+	/**
+	 * Calculates the value of one pixel after the adjustment.
+	 * @param oldPixelValue The original value.
+	 * @param calculatedLow The value that becomes 0.
+	 * @param scalingFactor The factor between the original and the new differences.
+	 * @return The new value, clamped to 0 ... 255.
+	 */
+	static int stretch(int oldPixelValue, int calculatedLow, double scalingFactor) {
+		int newPixelValue = (int) (min + (oldPixelValue - calculatedLow) * scalingFactor);
+		return Math.min(Math.max(min, newPixelValue), max);
+	}
+
+	/**
+	 * Calculates the new value of every possible pixel value for the given histogram,
+	 * the same way {@link #execute(ImageData)} does.
+	 * @param imageProcessor The image the histogram belongs to.
+	 * @param histogram The histogram of the original image.
+	 * @return The new value for each of the 256 original values.
+	 */
+	static int[] createLookupTable(ImageProcessor imageProcessor, Histogram histogram) {
+		int calculatedLow = calculateLowestModifiedPixelValue(imageProcessor, histogram);
+		int calculatedHigh = calculateHighestModifiedPixelValue(imageProcessor, histogram);
+		double scalingFactor = (double)(max) / (calculatedHigh - calculatedLow);
+		return createLookupTable(calculatedLow, scalingFactor);
+	}
+
+	private static int[] createLookupTable(int calculatedLow, double scalingFactor) {
+		int[] lookupTable = new int[max + 1];
+		for (int value = min; value <= max; value++) {
+			lookupTable[value] = stretch(value, calculatedLow, scalingFactor);
+		}
+		return lookupTable;
 	}
 
 	/**
@@ -70,13 +122,13 @@ public abstract class ContrastAdjustment {
 	 * @param histogram
 	 * @return return The new highest value as int
 	 */
-	private static int calculateLowestModifiedPixelValue(ImageProcessor imageProcessor, int[] histogram) {
+	private static int calculateLowestModifiedPixelValue(ImageProcessor imageProcessor, Histogram histogram) {
 		int modifiedPixelValue = min;
 		int border = (int) Math.ceil(Hyperparameter.SATURATION * imageProcessor.getHeight() * imageProcessor.getWidth());
 		int sum = 0;
 		
 		while(sum < border) {
-			sum += histogram[modifiedPixelValue];
+			sum += histogram.get(modifiedPixelValue);
 			modifiedPixelValue++;
 		}
 		return modifiedPixelValue;
@@ -88,13 +140,13 @@ public abstract class ContrastAdjustment {
 	 * @param histogram
 	 * @return return the new lowest pixel value as int
 	 */
-	private static int calculateHighestModifiedPixelValue(ImageProcessor imageProcessor, int[] histogram) {
+	private static int calculateHighestModifiedPixelValue(ImageProcessor imageProcessor, Histogram histogram) {
 		int modifiedPixelValue = max;
 		int border = (int) (Hyperparameter.SATURATION * imageProcessor.getHeight() * imageProcessor.getWidth());
 		int sum = 0;
 
 		while(sum < border) {
-			sum += histogram[modifiedPixelValue];
+			sum += histogram.get(modifiedPixelValue);
 			modifiedPixelValue--;
 		}
 		return modifiedPixelValue;
@@ -3,18 +3,30 @@ package preprocessing;
 import java.awt.Point;
 
 /**
- * This class stores a modifiable edge map 
+ * This class stores a modifiable edge map
+ *
+ * The map is stored row by row with one bit per pixel, 64 pixels in each long.
+ * This needs an eighth of the memory of a boolean array and allows skipping 64
+ * pixels without edges at once when searching for the next edge.
  */
 public class EdgeMap {
-	private final boolean[][] isEdge;
+	private final long[] bits;
 	private final int width, height;
+	private final int wordsPerRow;
 	private int edgeCount;
+	/**
+	 * All words before this index are known to contain no edges, so the search
+	 * for the next edge can start here
+	 */
+	private int scanPosition;
 
 	public EdgeMap(int width, int height) {
 		this.width = width;
 		this.height = height;
-		isEdge = new boolean[width][height];
+		wordsPerRow = (width + 63) >>> 6;
+		bits = new long[wordsPerRow * height];
 		edgeCount = 0;
+		scanPosition = 0;
 	}
 
 	public int getWidth() {
@@ -25,41 +37,111 @@ public class EdgeMap {
 		return height;
 	}
 
+	private int wordIndex(int x, int y) {
+		return y * wordsPerRow + (x >>> 6);
+	}
+
 	public boolean isEdge(int x, int y) {
-		return isEdge[x][y];
+		// the shift only uses the lowest 6 bits of x
+		return (bits[wordIndex(x, y)] & (1L << x)) != 0;
 	}
 
 	public void setEdge(int x, int y, boolean newValue) {
-		boolean oldValue = isEdge[x][y];
+		int index = wordIndex(x, y);
+		long mask = 1L << x;
+		boolean oldValue = (bits[index] & mask) != 0;
 		if (oldValue != newValue) {
-			isEdge[x][y] = newValue;
 			if (newValue) {
+				bits[index] |= mask;
 				edgeCount++;
+				scanPosition = Math.min(scanPosition, index);
 			} else {
+				bits[index] &= ~mask;
 				edgeCount--;
 			}
 		}
 	}
 
+	/**
+	 * Finds all edges in the 3x3 neighborhood of a pixel (including the pixel
+	 * itself) with three word reads instead of nine single pixel reads. Pixels
+	 * outside of the map are no edges.
+	 *
+	 * @return a bit mask where the bit (dx + 1) * 3 + (dy + 1) is set if the pixel
+	 *         (x + dx, y + dy) is an edge
+	 */
+	public int getNeighborhood(int x, int y) {
+		int neighborhood = 0;
+		for (int dy = -1; dy < 2; ++dy) {
+			int row = threePixels(x, y + dy);
+			int shift = dy + 1;
+			neighborhood |= (row & 1) << shift;
+			neighborhood |= ((row >>> 1) & 1) << (3 + shift);
+			neighborhood |= ((row >>> 2) & 1) << (6 + shift);
+		}
+		return neighborhood;
+	}
+
+	/**
+	 * @return the pixels x - 1, x and x + 1 of the row y as the lowest three bits
+	 */
+	private int threePixels(int x, int y) {
+		if (y < 0 || y >= height) {
+			return 0;
+		}
+		if (x == 0) {
+			// there is no pixel left of the border
+			return (int) ((bits[wordIndex(0, y)] << 1) & 6);
+		}
+		int start = x - 1;
+		int index = wordIndex(start, y);
+		int offset = start & 63;
+		long value = bits[index] >>> offset;
+		if (offset > 61 && (start >>> 6) + 1 < wordsPerRow) {
+			// the three pixels span two words
+			value |= bits[index + 1] << (64 - offset);
+		}
+		// bits right of the last column are never set
+		return (int) (value & 7);
+	}
+
 	/**
 	 * This method returns one edge point from the edgemap. This method does not guarantee which point comes next (thus the Random part in its name)
-	 * 
-	 * It might throw an exception if someone modifies the isEdge array directly (which should NEVER be done)
+	 *
+	 * The search continues where the last call stopped and skips 64 pixels without edges at once, so finding all edges with repeated calls needs only one pass over the map.
+	 *
+	 * It might throw an exception if someone modifies the bits array directly (which should NEVER be done)
 	 * @return a point which represents an edge pixels location or null if there are no edge pixels
 	 */
 	public Point getRandomPoint() {
-		if (edgeCount <= 0) {
+		int edge = nextEdge();
+		if (edge < 0) {
 			return null;
 		}
+		return new Point(edge % width, edge / width);
+	}
+
+	/**
+	 * Works like {@link #getRandomPoint()}, but returns the location packed into
+	 * one int so that no object has to be created
+	 *
+	 * @return y * width + x of an edge pixel or -1 if there are no edge pixels
+	 */
+	public int nextEdge() {
+		if (edgeCount <= 0) {
+			return -1;
+		}
 
-		for (int x = 0; x < width; ++x) {
-			for (int y = 0; y < height; ++y) {
-				if (isEdge[x][y]) {
-					return new Point(x, y);
-				}
+		for (int index = scanPosition; index < bits.length; ++index) {
+			long word = bits[index];
+			if (word != 0) {
+				scanPosition = index;
+				int y = index / wordsPerRow;
+				int x = ((index % wordsPerRow) << 6) + Long.numberOfTrailingZeros(word);
+				return y * width + x;
 			}
 		}
 
 		throw new IllegalStateException("edgeCount > 0, but no edge found");
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,63 @@
+package preprocessing;
+
+/**
+ * A segment of connected edge pixels. The coordinates are stored in two
+ * primitive arrays (one for x and one for y) instead of a list of Point
+ * objects, so that the hough transformation can iterate over them without
+ * following references.
+ *
+ * The {@link SegmentDescriptor} of the segment is measured while it is
+ * searched and stored with it.
+ */
+public class EdgeSegment {
+	private final int[] xs, ys;
+	private final SegmentDescriptor descriptor;
+
+	/**
+	 * The arrays are used directly and must not be modified afterwards.
+	 *
+	 * @param xs         the x coordinates of the pixels
+	 * @param ys         the y coordinates of the pixels, same length as xs
+	 * @param descriptor the measurements of the pixels
+	 */
+	public EdgeSegment(int[] xs, int[] ys, SegmentDescriptor descriptor) {
+		if (xs.length != ys.length) {
+			throw new IllegalArgumentException("xs and ys must have the same length");
+		}
+		this.xs = xs;
+		this.ys = ys;
+		this.descriptor = descriptor;
+	}
+
+	public int size() {
+		return xs.length;
+	}
+
+	public int getX(int index) {
+		return xs[index];
+	}
+
+	public int getY(int index) {
+		return ys[index];
+	}
+
+	/**
+	 * Provides direct access to the x coordinates for tight loops. The returned
+	 * array must not be modified.
+	 */
+	public int[] getXs() {
+		return xs;
+	}
+
+	/**
+	 * Provides direct access to the y coordinates for tight loops. The returned
+	 * array must not be modified.
+	 */
+	public int[] getYs() {
+		return ys;
+	}
+
+	public SegmentDescriptor getDescriptor() {
+		return descriptor;
+	}
+}
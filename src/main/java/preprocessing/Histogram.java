@@ -0,0 +1,86 @@
+package preprocessing;
+
+import ij.process.ImageProcessor;
+
+/**
+ * The histogram of an 8 bit image. It is computed once per image and handed
+ * from one preprocessing stage to the next, so that no stage has to count the
+ * pixels again. A stage that maps the pixel values with a lookup table derives
+ * the histogram of its result with {@link #map(int[])}, without looking at the
+ * pixels.
+ */
+public class Histogram {
+	private final int[] counts;
+	private final long pixelCount;
+
+	private Histogram(int[] counts) {
+		this.counts = counts;
+		long pixelCount = 0;
+		for (int count : counts) {
+			pixelCount += count;
+		}
+		this.pixelCount = pixelCount;
+	}
+
+	/**
+	 * Counts the pixels of the image, the same way as
+	 * {@link ImageProcessor#getHistogram()}
+	 */
+	public static Histogram of(ImageProcessor imageProcessor) {
+		return new Histogram(imageProcessor.getHistogram());
+	}
+
+	/**
+	 * @return the number of pixels with the given value
+	 */
+	public int get(int value) {
+		return counts[value];
+	}
+
+	/**
+	 * @return the number of values, one more than the biggest value
+	 */
+	public int size() {
+		return counts.length;
+	}
+
+	/**
+	 * @return the number of counted pixels
+	 */
+	public long getPixelCount() {
+		return pixelCount;
+	}
+
+	/**
+	 * @return the mean pixel value
+	 */
+	public double getMean() {
+		double sum = 0;
+		for (int value = 0; value < counts.length; value++) {
+			sum += (double) value * counts[value];
+		}
+		return sum / pixelCount;
+	}
+
+	/**
+	 * @return a copy of the counts, indexed by the pixel value
+	 */
+	public int[] toArray() {
+		return counts.clone();
+	}
+
+	/**
+	 * Calculates the histogram of the image after each pixel value v was
+	 * replaced with lookupTable[v]
+	 *
+	 * @param lookupTable the new value for every value of this histogram
+	 * @return the histogram of the mapped image
+	 */
+	public Histogram map(int[] lookupTable) {
+		int[] mapped = new int[counts.length];
+		for (int value = 0; value < counts.length; value++) {
+			mapped[lookupTable[value]] += counts[value];
+		}
+		return new Histogram(mapped);
+	}
+}
@@ -1,5 +1,8 @@
 package preprocessing;
 
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
 import com.bv_gruppe_d.imagej.Hyperparameter;
 import com.bv_gruppe_d.imagej.ImageData;
 import ij.process.ImageProcessor;
@@ -48,11 +51,37 @@ public abstract class MorphologicalFiltering
 	public static ImageData execute(ImageData imageData) {
 
 		Binarization.execute(imageData);
-		invert(imageData.getImageProcessor());
-		close(imageData.getImageProcessor(), closeHoles);
-		ImageProcessor other = imageData.getImageProcessor().duplicate();
-		dilate(imageData.getImageProcessor(), other, edgeDetection);
-		xor(other, imageData.getImageProcessor());
+		// The filters work on a packed copy with 64 pixels per long
+		BinaryImage image = BinaryImage.fromProcessor(imageData.getImageProcessor());
+		image.invert();
+		return filter(imageData, image);
+	}
+
+	/**
+	 * Does the same as {@link #execute(ImageData)} for an image that is already
+	 * binarized and inverted.
+	 * @param imageData the image to write the result into
+	 * @param inverted the binarized and inverted image, its buffer is returned to
+	 * the pool, so it must not be used afterwards
+	 * @return a copy of the result without the border
+	 */
+	static ImageData filter(ImageData imageData, BinaryImage inverted) {
+		return filter(imageData, inverted, null);
+	}
+
+	/**
+	 * @param pool the pool that processes the stripes of the image or null to use
+	 * the calling thread
+	 * @see #filter(ImageData, BinaryImage)
+	 */
+	static ImageData filter(ImageData imageData, BinaryImage inverted, ForkJoinPool pool) {
+		BinaryImage image = close(inverted, closeHoles, pool);
+		inverted.release();
+		BinaryImage other = image.dilate(edgeDetection, pool);
+		image.xor(other);
+		other.release();
+		image.writeTo(imageData.getImageProcessor(), pool);
+		image.release();
 		imageData = new ImageData(removeBorder(imageData).getImageProcessor(), imageData.getLabel());
 
 		return imageData;
@@ -63,8 +92,13 @@ public abstract class MorphologicalFiltering
 	 * @param output input ImageProcessor
 	 */
 	public static void invert(ImageProcessor output) {
-		for (int x = 0; x < output.getWidth(); x++) {
-			for (int y = 0; y < output.getHeight(); y++) {
+		byte[] pixels = PixelKernels.bytePixels(output);
+		if (pixels != null) {
+			PixelKernels.applyTable(pixels, PixelKernels.thresholdTable(128, true));
+			return;
+		}
+		for (int y = 0; y < output.getHeight(); y++) {
+			for (int x = 0; x < output.getWidth(); x++) {
 				boolean a = output.get(x, y) > 127;
 				output.set(x, y, (!a) ? WHITE : BLACK);
 			}
@@ -77,8 +111,15 @@ public abstract class MorphologicalFiltering
 	 * @param output
 	 */
 	public static void xor(ImageProcessor input, ImageProcessor output) {
-		for (int x = 0; x < output.getWidth(); x++) {
-			for (int y = 0; y < output.getHeight(); y++) {
+		byte[] in = PixelKernels.bytePixels(input), out = PixelKernels.bytePixels(output);
+		if (in != null && out != null) {
+			for (int i = 0; i < out.length; i++) {
+				out[i] = (PixelKernels.isWhite(in[i]) != PixelKernels.isWhite(out[i])) ? PixelKernels.WHITE : PixelKernels.BLACK;
+			}
+			return;
+		}
+		for (int y = 0; y < output.getHeight(); y++) {
+			for (int x = 0; x < output.getWidth(); x++) {
 				boolean a = input.get(x, y) > 127;
 				boolean b = output.get(x, y) > 127;
 				boolean aXORb = (a && !b) || (!a && b);
@@ -87,6 +128,46 @@ public abstract class MorphologicalFiltering
 		}
 	}
 
+	/**
+	 * Opens the objects on the image by first eroding and then dilating them
+	 * @return a new image, the input is not modified
+	 */
+	public static BinaryImage open(BinaryImage input, StructureElement structureElement) {
+		return open(input, structureElement, null);
+	}
+
+	/**
+	 * Opens the objects on the image with the stripes of the image processed in parallel
+	 * @param pool the pool for the stripes or null to use the calling thread
+	 * @return a new image, the input is not modified
+	 */
+	public static BinaryImage open(BinaryImage input, StructureElement structureElement, ForkJoinPool pool) {
+		BinaryImage eroded = input.erode(structureElement, pool);
+		BinaryImage result = eroded.dilate(structureElement, pool);
+		eroded.release();
+		return result;
+	}
+
+	/**
+	 * Closes the objects on the image by first dilating and then eroding them
+	 * @return a new image, the input is not modified
+	 */
+	public static BinaryImage close(BinaryImage input, StructureElement structureElement) {
+		return close(input, structureElement, null);
+	}
+
+	/**
+	 * Closes the objects on the image with the stripes of the image processed in parallel
+	 * @param pool the pool for the stripes or null to use the calling thread
+	 * @return a new image, the input is not modified
+	 */
+	public static BinaryImage close(BinaryImage input, StructureElement structureElement, ForkJoinPool pool) {
+		BinaryImage dilated = input.dilate(structureElement, pool);
+		BinaryImage result = dilated.erode(structureElement, pool);
+		dilated.release();
+		return result;
+	}
+
 	public static void open(ImageProcessor output, StructureElement structureElement) {
 		erode(output.duplicate(), output, structureElement);
 		dilate(output.duplicate(), output, structureElement);
@@ -129,6 +210,7 @@ public abstract class MorphologicalFiltering
 		private final boolean[][] mask;
 		private final int anchorX, anchorY;
 		private final int w, h;
+		private final int count;
 
 		public StructureElement(boolean[][] mask, int anchorX, int anchorY) {
 			this.mask = mask;
@@ -137,6 +219,16 @@ public abstract class MorphologicalFiltering
 			w = mask.length;
 			h = mask[0].length;
 
+			int count = 0;
+			for (boolean[] column : mask) {
+				for (boolean set : column) {
+					if (set) {
+						count++;
+					}
+				}
+			}
+			this.count = count;
+
 			if (anchorX < 0 || anchorX >= getWidth()) {
 				throw new RuntimeException("anchorX out of bounds");
 			}
@@ -156,6 +248,29 @@ public abstract class MorphologicalFiltering
 		public int getHeight() {
 			return h;
 		}
+
+		public int getAnchorX() {
+			return anchorX;
+		}
+
+		public int getAnchorY() {
+			return anchorY;
+		}
+
+		/**
+		 * @return the number of cells of the mask that are set
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * @return true if every cell of the mask is set, so the mask is a full
+		 *         rectangle
+		 */
+		public boolean isRectangle() {
+			return count == w * h;
+		}
 	}
 
 	/**
@@ -168,11 +283,7 @@ public abstract class MorphologicalFiltering
 		final int imageWidth = imageData.getImageProcessor().getWidth()-2*Hyperparameter.MASK_SIZE;
 		final int imageHeight = imageData.getImageProcessor().getHeight()-2*Hyperparameter.MASK_SIZE;
 		
-		ImageData image = imageData.duplicate();
-		image.getImageProcessor().setRoi(Hyperparameter.MASK_SIZE, Hyperparameter.MASK_SIZE, imageWidth, imageHeight);
-		imageData = new ImageData(image.getImageProcessor().crop(), image.getLabel());
-		
-		return imageData;		
+		return imageData.crop(Hyperparameter.MASK_SIZE, Hyperparameter.MASK_SIZE, imageWidth, imageHeight);		
 	}
 
 	/**
@@ -186,32 +297,34 @@ public abstract class MorphologicalFiltering
 									   Type type) {
 		int thresholdInclusive = -1;
 		if (type == Type.ERODE) {
-			int sum = 0;
-			for (int x = 0; x < structureElement.getWidth(); x++) {
-				for (int y = 0; y < structureElement.getHeight(); y++) {
-					if (structureElement.get(x, y)) {
-						sum++;
-					}
-				}
-				thresholdInclusive = sum;
-			}
+			thresholdInclusive = structureElement.getCount();
 		} else if (type == Type.DILATE) {
 			thresholdInclusive = 1;
 		} else {
 			throw new RuntimeException("Unknown type: " + type);
 		}
 
+		byte[] in = PixelKernels.bytePixels(input), out = PixelKernels.bytePixels(output);
+		if (in != null && out != null) {
+			if (structureElement.isRectangle()) {
+				applyRectangle(in, out, input.getWidth(), input.getHeight(), structureElement, thresholdInclusive);
+			} else {
+				applyMask(in, out, input.getWidth(), input.getHeight(), structureElement, thresholdInclusive);
+			}
+			return;
+		}
+
 		int maxX = input.getWidth() - structureElement.getWidth();// off by 1?
 		int maxY = input.getHeight() - structureElement.getHeight();// off by 1?
 
-		for (int x = 0; x < input.getWidth(); x++) {
-			for (int y = 0; y < input.getHeight(); y++) {
+		for (int y = 0; y < input.getHeight(); y++) {
+			for (int x = 0; x < input.getWidth(); x++) {
 				output.set(x, y, BLACK);
 			}
 		}
 
-		for (int x = 0; x < maxX; x++) {
-			for (int y = 0; y < maxY; y++) {
+		for (int y = 0; y < maxY; y++) {
+			for (int x = 0; x < maxX; x++) {
 				int sum = 0;
 				for (int i = 0; i < structureElement.getWidth(); i++) {
 					for (int j = 0; j < structureElement.getHeight(); j++) {
@@ -226,4 +339,86 @@ public abstract class MorphologicalFiltering
 			}
 		}
 	}
+
+	/**
+	 * Does the same as applyOperation for masks that are full rectangles, but
+	 * with a cost per pixel that does not depend on the size of the mask.
+	 *
+	 * The number of white pixels in each window is counted in two passes: first
+	 * the running count over w pixels of every row, then the running count of
+	 * these row counts over h rows.
+	 */
+	private static void applyRectangle(byte[] in, byte[] out, int width, int height, StructureElement structureElement,
+									   int thresholdInclusive) {
+		final int w = structureElement.getWidth(), h = structureElement.getHeight();
+		final int maxX = width - w;// same window positions as applyOperation
+		final int maxY = height - h;
+		if (maxX <= 0 || maxY <= 0) {
+			// the mask fits nowhere
+			Arrays.fill(out, PixelKernels.BLACK);
+			return;
+		}
+
+		// rowCounts[y * maxX + x] is the number of white pixels from (x, y) to (x + w - 1, y)
+		int[] rowCounts = new int[maxX * height];
+		for (int y = 0; y < height; y++) {
+			final int row = y * width;
+			int sum = 0;
+			for (int i = 0; i < w - 1; i++) {
+				sum += white(in[row + i]);
+			}
+			for (int x = 0; x < maxX; x++) {
+				sum += white(in[row + x + w - 1]);
+				rowCounts[y * maxX + x] = sum;
+				sum -= white(in[row + x]);
+			}
+		}
+
+		// The input is completely read, so the output may be the same image
+		Arrays.fill(out, PixelKernels.BLACK);
+		for (int x = 0; x < maxX; x++) {
+			int sum = 0;
+			for (int j = 0; j < h - 1; j++) {
+				sum += rowCounts[j * maxX + x];
+			}
+			for (int y = 0; y < maxY; y++) {
+				sum += rowCounts[(y + h - 1) * maxX + x];
+				if (sum >= thresholdInclusive) {
+					out[(y + structureElement.anchorY) * width + x + structureElement.anchorX] = PixelKernels.WHITE;
+				}
+				sum -= rowCounts[y * maxX + x];
+			}
+		}
+	}
+
+	/**
+	 * Does the same as applyOperation for any mask, on the pixel arrays
+	 */
+	private static void applyMask(byte[] in, byte[] out, int width, int height, StructureElement structureElement,
+								  int thresholdInclusive) {
+		final int w = structureElement.getWidth(), h = structureElement.getHeight();
+		final int maxX = width - w;// same window positions as applyOperation
+		final int maxY = height - h;
+
+		Arrays.fill(out, PixelKernels.BLACK);
+		for (int y = 0; y < maxY; y++) {
+			for (int x = 0; x < maxX; x++) {
+				int sum = 0;
+				for (int j = 0; j < h; j++) {
+					final int row = (y + j) * width + x;
+					for (int i = 0; i < w; i++) {
+						if (structureElement.get(i, j) && PixelKernels.isWhite(in[row + i])) {
+							sum++;
+						}
+					}
+				}
+				out[(y + structureElement.anchorY) * width + x + structureElement.anchorX] =
+						(sum >= thresholdInclusive) ? PixelKernels.WHITE : PixelKernels.BLACK;
+			}
+		}
+	}
+
+	private static int white(byte value) {
+		return PixelKernels.isWhite(value) ? 1 : 0;
+	}
 }
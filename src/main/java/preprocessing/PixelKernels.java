@@ -0,0 +1,70 @@
+package preprocessing;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Small helpers for the loops over the pixels of a ByteProcessor. They work
+ * directly on the pixel array, which stores the image row by row, so the loops
+ * read the memory in order and no accessor with bounds checks is called for
+ * each pixel.
+ *
+ * Other image types are not supported, for them the callers keep their loops
+ * with ImageProcessor.get and set.
+ */
+final class PixelKernels {
+	static final byte WHITE = (byte) 255, BLACK = 0;
+
+	private PixelKernels() {
+	}
+
+	/**
+	 * @return the pixel array of the image (row by row) or null if the image is no
+	 *         ByteProcessor
+	 */
+	static byte[] bytePixels(ImageProcessor ip) {
+		return (ip instanceof ByteProcessor) ? (byte[]) ip.getPixels() : null;
+	}
+
+	/**
+	 * @return true if the value counts as white in the binary steps (above 127)
+	 */
+	static boolean isWhite(byte value) {
+		return (value & 0xff) > 127;
+	}
+
+	/**
+	 * Replaces every pixel value v with table[v]
+	 */
+	static void applyTable(byte[] pixels, byte[] table) {
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = table[pixels[i] & 0xff];
+		}
+	}
+
+	/**
+	 * @param lookupTable values between 0 and 255
+	 * @return the table as bytes for {@link #applyTable(byte[], byte[])}
+	 */
+	static byte[] toByteTable(int[] lookupTable) {
+		byte[] table = new byte[lookupTable.length];
+		for (int value = 0; value < table.length; value++) {
+			table[value] = (byte) lookupTable[value];
+		}
+		return table;
+	}
+
+	/**
+	 * @param thresholdInclusive the smallest value that becomes white
+	 * @param inverted           if true the values below the threshold become
+	 *                           white and the others black
+	 * @return a table for {@link #applyTable(byte[], byte[])}
+	 */
+	static byte[] thresholdTable(int thresholdInclusive, boolean inverted) {
+		byte[] table = new byte[256];
+		for (int value = 0; value < table.length; value++) {
+			table[value] = ((value >= thresholdInclusive) != inverted) ? WHITE : BLACK;
+		}
+		return table;
+	}
+}
@@ -1,6 +1,11 @@
 package preprocessing;
 
+import java.util.concurrent.ForkJoinPool;
+
+import com.bv_gruppe_d.imagej.Hyperparameter;
 import com.bv_gruppe_d.imagej.ImageData;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
 
 
 /**
@@ -14,8 +19,54 @@ public abstract class PreProcessing {
 	 * @return A preprocessed copy of the image with the same label.
 	 */
 	public static ImageData execute(ImageData imageData) {
-		ContrastAdjustment.execute(imageData);
-		Binarization.execute(imageData);
+		return execute(imageData, null);
+	}
+
+	/**
+	 * Executes all preprocessing operations. The image is split into horizontal
+	 * stripes that are processed in parallel, the result is the same as the one of
+	 * {@link #execute(ImageData)}.
+	 * @param imageData The image to be preprocessed.
+	 * @param pool The pool that processes the stripes or null to use the calling thread.
+	 * @return A preprocessed copy of the image with the same label.
+	 */
+	public static ImageData execute(ImageData imageData, ForkJoinPool pool) {
+		ImageProcessor imageProcessor = imageData.getImageProcessor();
+		// counted once for all stages
+		Histogram histogram = Histogram.of(imageProcessor);
+		Binarization.Mode mode = Hyperparameter.BINARIZATION_MODE;
+		if (imageProcessor instanceof ByteProcessor && mode == Binarization.Mode.FIXED) {
+			BinaryImage inverted = createInvertedMask((ByteProcessor) imageProcessor, histogram, pool);
+			return MorphologicalFiltering.filter(imageData, inverted, pool);
+		}
+
+		Histogram adjusted = ContrastAdjustment.execute(imageData, histogram);
+		Binarization.execute(imageData, mode, adjusted);
+		if (imageProcessor instanceof ByteProcessor) {
+			// the binarized image only contains 0 and 255
+			BinaryImage inverted = BinaryImage.fromProcessor(imageProcessor);
+			inverted.invert();
+			return MorphologicalFiltering.filter(imageData, inverted, pool);
+		}
 		return MorphologicalFiltering.execute(imageData);
 	}
+
+	/**
+	 * Does the contrast adjustment, the binarization and the inversion at the start
+	 * of the morphological filtering in one pass over the pixels. Whether a pixel
+	 * ends up white only depends on its original value, so this is decided once for
+	 * each of the 256 values with the same calculations as the single steps.
+	 * @param imageProcessor The original image, it is not modified.
+	 * @param histogram The histogram of the original image.
+	 * @param pool The pool that processes the stripes or null to use the calling thread.
+	 * @return The binarized and inverted image.
+	 */
+	static BinaryImage createInvertedMask(ByteProcessor imageProcessor, Histogram histogram, ForkJoinPool pool) {
+		int[] lookupTable = ContrastAdjustment.createLookupTable(imageProcessor, histogram);
+		boolean[] white = new boolean[lookupTable.length];
+		for (int value = 0; value < white.length; value++) {
+			white[value] = lookupTable[value] < Binarization.THRESHOLD;
+		}
+		return BinaryImage.fromProcessor(imageProcessor, white, pool);
+	}
 }
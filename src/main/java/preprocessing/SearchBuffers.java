@@ -0,0 +1,110 @@
+package preprocessing;
+
+import java.util.Arrays;
+
+/**
+ * The scratch memory of the breadth first search: a ring buffer queue of
+ * packed pixel positions, the coordinates of the current segment and the sums
+ * its {@link SegmentDescriptor} is made of. All arrays only grow, so after a
+ * few images no more memory is allocated.
+ */
+class SearchBuffers {
+	private static final double DIAGONAL_STEP = Math.sqrt(2);
+
+	private int[] queue = new int[256];
+	private int head, tail, queueSize;
+	int[] xs = new int[256], ys = new int[256];
+
+	private int minX, minY, maxX, maxY;
+	private long sumX, sumY, sumXX, sumXY, sumYY;
+	private double perimeter;
+
+	/**
+	 * Prepares the buffers for the next segment
+	 */
+	void clear() {
+		head = 0;
+		tail = 0;
+		queueSize = 0;
+		minX = minY = Integer.MAX_VALUE;
+		maxX = maxY = Integer.MIN_VALUE;
+		sumX = sumY = sumXX = sumXY = sumYY = 0;
+		perimeter = 0;
+	}
+
+	boolean isQueueEmpty() {
+		return queueSize == 0;
+	}
+
+	void enqueue(int value) {
+		if (queueSize == queue.length) {
+			growQueue();
+		}
+		queue[tail] = value;
+		// the capacity is always a power of two
+		tail = (tail + 1) & (queue.length - 1);
+		queueSize++;
+	}
+
+	int dequeue() {
+		int value = queue[head];
+		head = (head + 1) & (queue.length - 1);
+		queueSize--;
+		return value;
+	}
+
+	/**
+	 * Doubles the capacity and moves the entries to the start of the new array
+	 */
+	private void growQueue() {
+		int[] newQueue = new int[2 * queue.length];
+		int firstPart = queue.length - head;
+		System.arraycopy(queue, head, newQueue, 0, firstPart);
+		System.arraycopy(queue, 0, newQueue, firstPart, head);
+		head = 0;
+		tail = queue.length;
+		queue = newQueue;
+	}
+
+	void append(int index, int x, int y) {
+		if (index == xs.length) {
+			xs = Arrays.copyOf(xs, 2 * index);
+			ys = Arrays.copyOf(ys, 2 * index);
+		}
+		xs[index] = x;
+		ys[index] = y;
+
+		minX = Math.min(minX, x);
+		minY = Math.min(minY, y);
+		maxX = Math.max(maxX, x);
+		maxY = Math.max(maxY, y);
+		sumX += x;
+		sumY += y;
+		sumXX += (long) x * x;
+		sumXY += (long) x * y;
+		sumYY += (long) y * y;
+	}
+
+	/**
+	 * Adds the step from a pixel to the neighbor it found to the perimeter
+	 */
+	void addStep(int dx, int dy) {
+		perimeter += (dx != 0 && dy != 0) ? DIAGONAL_STEP : 1;
+	}
+
+	/**
+	 * @return the measurements of the size points that were appended since the
+	 *         last call of {@link #clear()}
+	 */
+	SegmentDescriptor descriptor(int size) {
+		return new SegmentDescriptor(minX, minY, maxX, maxY, size, sumX, sumY, sumXX, sumXY, sumYY, perimeter);
+	}
+
+	/**
+	 * @return a segment with a copy of the size points that were appended since
+	 *         the last call of {@link #clear()}
+	 */
+	EdgeSegment toSegment(int size) {
+		return new EdgeSegment(Arrays.copyOf(xs, size), Arrays.copyOf(ys, size), descriptor(size));
+	}
+}
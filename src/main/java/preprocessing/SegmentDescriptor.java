@@ -0,0 +1,119 @@
+package preprocessing;
+
+/**
+ * Simple shape measurements of one segment. They are collected while the
+ * segment is searched, so they cost no extra pass over its points, and allow
+ * rejecting segments before any expensive work is done on them.
+ */
+public class SegmentDescriptor {
+	private final int minX, minY, maxX, maxY;
+	private final double centroidX, centroidY;
+	private final double mu20, mu02, mu11;
+	private final double perimeter;
+
+	/**
+	 * @param count     the number of points
+	 * @param sumX      the sum of all x coordinates
+	 * @param sumY      the sum of all y coordinates
+	 * @param sumXX     the sum of all x * x
+	 * @param sumXY     the sum of all x * y
+	 * @param sumYY     the sum of all y * y
+	 * @param perimeter the length of the segment, see {@link #getPerimeter()}
+	 */
+	SegmentDescriptor(int minX, int minY, int maxX, int maxY, int count, long sumX, long sumY, long sumXX, long sumXY,
+			long sumYY, double perimeter) {
+		this.minX = minX;
+		this.minY = minY;
+		this.maxX = maxX;
+		this.maxY = maxY;
+		centroidX = (double) sumX / count;
+		centroidY = (double) sumY / count;
+		mu20 = (double) sumXX / count - centroidX * centroidX;
+		mu02 = (double) sumYY / count - centroidY * centroidY;
+		mu11 = (double) sumXY / count - centroidX * centroidY;
+		this.perimeter = perimeter;
+	}
+
+	public int getMinX() {
+		return minX;
+	}
+
+	public int getMinY() {
+		return minY;
+	}
+
+	public int getMaxX() {
+		return maxX;
+	}
+
+	public int getMaxY() {
+		return maxY;
+	}
+
+	/**
+	 * @return the number of pixels between the first and the last column,
+	 *         including both
+	 */
+	public int getWidth() {
+		return maxX - minX + 1;
+	}
+
+	/**
+	 * @return the number of pixels between the first and the last row, including
+	 *         both
+	 */
+	public int getHeight() {
+		return maxY - minY + 1;
+	}
+
+	/**
+	 * @return the distance between the opposite corner points of the bounding box.
+	 *         No two points of the segment are further apart than this
+	 */
+	public double getDiagonal() {
+		double dx = maxX - minX, dy = maxY - minY;
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	public double getCentroidX() {
+		return centroidX;
+	}
+
+	public double getCentroidY() {
+		return centroidY;
+	}
+
+	/**
+	 * @return the second order central moment in x direction, divided by the
+	 *         number of points (the variance of the x coordinates)
+	 */
+	public double getMu20() {
+		return mu20;
+	}
+
+	/**
+	 * @return the second order central moment in y direction, divided by the
+	 *         number of points (the variance of the y coordinates)
+	 */
+	public double getMu02() {
+		return mu02;
+	}
+
+	/**
+	 * @return the second order mixed central moment, divided by the number of
+	 *         points (the covariance of the coordinates)
+	 */
+	public double getMu11() {
+		return mu11;
+	}
+
+	/**
+	 * @return the length of the paths that connect the points during the search
+	 *         (1 for a horizontal or vertical step, sqrt(2) for a diagonal one).
+	 *         For the thin lines of an edge image this is close to the length of
+	 *         the contour
+	 */
+	public double getPerimeter() {
+		return perimeter;
+	}
+}
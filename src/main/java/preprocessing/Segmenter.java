@@ -1,8 +1,6 @@
 package preprocessing;
 
-import java.awt.Point;
 import java.util.ArrayList;
-import java.util.LinkedList;
 
 import com.bv_gruppe_d.imagej.ImageData;
 
@@ -18,6 +16,12 @@ import ij.process.ImageProcessor;
  * vertical) are connected by an edge. Each segment is a connected subgraph.
  */
 public class Segmenter {
+	/**
+	 * The buffers of the breadth first search are reused for all segments and
+	 * images that are processed on the same thread
+	 */
+	static final ThreadLocal<SearchBuffers> BUFFERS = ThreadLocal.withInitial(SearchBuffers::new);
+
 	private final int minSize;
 
 	/**
@@ -29,22 +33,23 @@ public class Segmenter {
 	}
 
 	/**
-	* Extracts all the segments (a segment is just a ArrayList<Point>) out of the
-	* imageData object and returns them as a list.
+	* Extracts all the segments out of the imageData object and returns them as a
+	* list.
 	*/
-	public ArrayList<ArrayList<Point>> execute(ImageData imageData) {
-		ArrayList<ArrayList<Point>> shapeList = new ArrayList<>();
+	public ArrayList<EdgeSegment> execute(ImageData imageData) {
+		ArrayList<EdgeSegment> shapeList = new ArrayList<>();
 		EdgeMap edgeMap = createEdgeMap(imageData.getImageProcessor());
+		SearchBuffers buffers = BUFFERS.get();
 
-		Point start;
+		int start;
 		// While there are unassigned edge points, chose one at random
-		while ((start = edgeMap.getRandomPoint()) != null) {
+		while ((start = edgeMap.nextEdge()) >= 0) {
 			// Then add all the neighbors using a breadth first search
-			ArrayList<Point> shape = breathFirstSearch(edgeMap, start);
+			int size = breathFirstSearch(edgeMap, start, buffers);
 
 			// Ignore any shapes that are to small
-			if (shape.size() > minSize) {
-				shapeList.add(shape);
+			if (size > minSize) {
+				shapeList.add(buffers.toSegment(size));
 			}
 		}
 
@@ -56,9 +61,11 @@ public class Segmenter {
 		final int w = ip.getWidth(), h = ip.getHeight();
 
 		EdgeMap edgeMap = new EdgeMap(w, h);
-		for (int x = 0; x < w; ++x) {
-			for (int y = 0; y < h; ++y) {
-				boolean isEdge = (ip.get(x, y) & 0xff) >= 0x80;// check if it is white
+		byte[] pixels = PixelKernels.bytePixels(ip);
+		for (int y = 0; y < h; ++y) {
+			for (int x = 0; x < w; ++x) {
+				int value = (pixels != null) ? pixels[y * w + x] : ip.get(x, y);
+				boolean isEdge = (value & 0xff) >= 0x80;// check if it is white
 				if (isEdge) {
 					edgeMap.setEdge(x, y, isEdge);
 				}
@@ -67,31 +74,38 @@ public class Segmenter {
 		return edgeMap;
 	}
 
-	private ArrayList<Point> breathFirstSearch(EdgeMap edgeMap, Point start) {
-		ArrayList<Point> shape = new ArrayList<Point>();
-		LinkedList<Point> checkNext = new LinkedList<Point>();
-		checkNext.add(start);
-		edgeMap.setEdge(start.x, start.y, false);
-
-		final int w = edgeMap.getWidth(), h = edgeMap.getHeight();
-		while (!checkNext.isEmpty()) {
-			Point current = checkNext.removeFirst();
-			shape.add(current);
+	/**
+	 * Collects all pixels connected to start into the coordinate buffers and
+	 * measures the segment on the way. The queue stores the pixels as
+	 * y * width + x, so no objects are created.
+	 *
+	 * @return the number of pixels in the segment
+	 */
+	private int breathFirstSearch(EdgeMap edgeMap, int start, SearchBuffers buffers) {
+		final int w = edgeMap.getWidth();
+		int size = 0;
+		buffers.clear();
+		buffers.enqueue(start);
+		edgeMap.setEdge(start % w, start / w, false);
 
-			// check neighbors. the point itself will be checked too, but since isEdge will return false for it that is no problem
-			for (int dx = -1; dx < 2; dx++) {
-				for (int dy = -1; dy < 2; dy++) {
-					int x = current.x + dx;
-					int y = current.y + dy;
+		while (!buffers.isQueueEmpty()) {
+			int current = buffers.dequeue();
+			int currentX = current % w, currentY = current / w;
+			buffers.append(size++, currentX, currentY);
 
-					boolean isInBounds = x >= 0 && x < w && y >= 0 && y < h;
-					if (isInBounds && edgeMap.isEdge(x, y)) {
-						checkNext.addLast(new Point(x, y));
-						edgeMap.setEdge(x, y, false);
-					}
-				}
+			// check neighbors. the point itself is included too, but since it is no edge anymore that is no problem
+			int neighbors = edgeMap.getNeighborhood(currentX, currentY);
+			while (neighbors != 0) {
+				int bit = Integer.numberOfTrailingZeros(neighbors);
+				neighbors &= neighbors - 1;
+				int dx = bit / 3 - 1, dy = bit % 3 - 1;
+				int x = currentX + dx;
+				int y = currentY + dy;
+				buffers.enqueue(y * w + x);
+				buffers.addStep(dx, dy);
+				edgeMap.setEdge(x, y, false);
 			}
 		}
-		return shape;
+		return size;
 	}
 }
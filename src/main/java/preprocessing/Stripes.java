@@ -0,0 +1,71 @@
+package preprocessing;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits the rows of an image into horizontal stripes and processes them in
+ * parallel. The stripes never overlap, so a task may write its own rows
+ * without synchronization. Rows it needs to read from the neighboring stripes
+ * (the halo) must not be written by the same step.
+ */
+final class Stripes {
+	/**
+	 * Stripes are not made smaller than this many rows, since the tasks would
+	 * cost more than they save
+	 */
+	static final int MIN_STRIPE_HEIGHT = 32;
+
+	/**
+	 * How many stripes are made per worker of the pool. More stripes than workers
+	 * allow the pool to balance the load
+	 */
+	private static final int STRIPES_PER_WORKER = 4;
+
+	/**
+	 * The work for the rows firstRow (inclusive) until endRow (exclusive)
+	 */
+	interface RowTask {
+		void run(int firstRow, int endRow);
+	}
+
+	private Stripes() {
+	}
+
+	/**
+	 * Runs the task for all rows between 0 and rows and waits until it is done.
+	 *
+	 * @param pool the pool to run the stripes on, or null to run all rows on the
+	 *             calling thread
+	 */
+	static void run(ForkJoinPool pool, int rows, RowTask task) {
+		int count = (pool == null) ? 1 : Math.min(pool.getParallelism() * STRIPES_PER_WORKER, rows / MIN_STRIPE_HEIGHT);
+		if (count <= 1) {
+			task.run(0, rows);
+			return;
+		}
+
+		ArrayList<RecursiveAction> actions = new ArrayList<>(count);
+		for (int s = 0; s < count; ++s) {
+			final int firstRow = (int) ((long) rows * s / count), endRow = (int) ((long) rows * (s + 1) / count);
+			actions.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					task.run(firstRow, endRow);
+				}
+			});
+		}
+		pool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				ForkJoinTask.invokeAll(actions);
+			}
+		});
+	}
+}
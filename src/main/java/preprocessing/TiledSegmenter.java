@@ -0,0 +1,292 @@
+package preprocessing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import com.bv_gruppe_d.imagej.ImageData;
+
+import ij.process.ImageProcessor;
+
+/**
+ * This class splits an image into segments like the {@link Segmenter}, but
+ * uses multiple threads. It is meant for images that are much bigger than the
+ * usual crop, where the single threaded search becomes noticeable.
+ *
+ * The image is cut into horizontal stripes that are labeled in parallel with a
+ * union find over the pixel indices. The components that touch a stripe border
+ * are merged afterwards. The root of every component is its first pixel in row
+ * major order, which is the pixel the Segmenter starts its search at. The
+ * breadth first search of each component then runs in parallel, so the result
+ * is identical to the one of the Segmenter (same segments, same order, same
+ * order of the pixels in each segment).
+ */
+public class TiledSegmenter {
+	private static final int BACKGROUND = -1, VISITED = -2;
+
+	/**
+	 * Stripes are not made smaller than this many rows, since the border merge
+	 * would cost more than the parallel labeling saves
+	 */
+	private static final int MIN_STRIPE_HEIGHT = 64;
+
+	private final int minSize;
+	private final ForkJoinPool pool;
+
+	/**
+	 * Creates a new TiledSegmenter. All segments with less elements than minSize
+	 * are ignored
+	 *
+	 * @param pool the pool that labels the stripes and searches the segments
+	 */
+	public TiledSegmenter(int minSize, ForkJoinPool pool) {
+		this.minSize = minSize;
+		this.pool = pool;
+	}
+
+	/**
+	 * Extracts all the segments out of the imageData object and returns them as a
+	 * list, in the same order as {@link Segmenter#execute(ImageData)}.
+	 */
+	public ArrayList<EdgeSegment> execute(ImageData imageData) {
+		ImageProcessor ip = imageData.getImageProcessor();
+		final int w = ip.getWidth(), h = ip.getHeight();
+		int[] parent = new int[w * h];
+
+		int stripeCount = Math.max(1, Math.min(pool.getParallelism() * 4, h / MIN_STRIPE_HEIGHT));
+		int[] stripeStart = new int[stripeCount + 1];
+		for (int s = 0; s <= stripeCount; ++s) {
+			stripeStart[s] = (int) ((long) h * s / stripeCount);
+		}
+
+		// Label every stripe on its own
+		ArrayList<RecursiveAction> labelTasks = new ArrayList<>(stripeCount);
+		for (int s = 0; s < stripeCount; ++s) {
+			final int firstRow = stripeStart[s], endRow = stripeStart[s + 1];
+			labelTasks.add(action(() -> labelStripe(ip, parent, w, firstRow, endRow)));
+		}
+		invokeAll(labelTasks);
+
+		// Connect the components across the borders of the stripes
+		for (int s = 1; s < stripeCount; ++s) {
+			mergeBorder(parent, w, stripeStart[s]);
+		}
+
+		// Point every pixel directly to its root
+		ArrayList<RecursiveAction> flattenTasks = new ArrayList<>(stripeCount);
+		for (int s = 0; s < stripeCount; ++s) {
+			final int start = stripeStart[s] * w, end = stripeStart[s + 1] * w;
+			flattenTasks.add(action(() -> flatten(parent, start, end)));
+		}
+		invokeAll(flattenTasks);
+
+		// Each root is the first pixel of its segment in row major order
+		int[] roots = new int[64];
+		int rootCount = 0;
+		for (int p = 0; p < parent.length; ++p) {
+			if (parent[p] == p) {
+				if (rootCount == roots.length) {
+					roots = Arrays.copyOf(roots, 2 * rootCount);
+				}
+				roots[rootCount++] = p;
+			}
+		}
+
+		// Search the segments in batches of consecutive roots to keep the order
+		int batchCount = Math.max(1, Math.min(rootCount, pool.getParallelism() * 4));
+		ArrayList<SearchTask> searchTasks = new ArrayList<>(batchCount);
+		for (int b = 0; b < batchCount; ++b) {
+			int first = (int) ((long) rootCount * b / batchCount), end = (int) ((long) rootCount * (b + 1) / batchCount);
+			searchTasks.add(new SearchTask(parent, w, h, roots, first, end));
+		}
+		invokeAll(searchTasks);
+
+		ArrayList<EdgeSegment> shapeList = new ArrayList<>();
+		for (SearchTask task : searchTasks) {
+			shapeList.addAll(task.join());
+		}
+		System.out.println("Found " + shapeList.size() + " segments");
+		return shapeList;
+	}
+
+	/**
+	 * Runs the tasks on the pool and waits for all of them
+	 */
+	private void invokeAll(List<? extends ForkJoinTask<?>> tasks) {
+		pool.invoke(action(() -> RecursiveAction.invokeAll(tasks)));
+	}
+
+	private static RecursiveAction action(Runnable runnable) {
+		return new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				runnable.run();
+			}
+		};
+	}
+
+	/**
+	 * Labels the rows firstRow until endRow (exclusive). Only indices inside of the
+	 * stripe are written, so the stripes can be labeled at the same time.
+	 */
+	private static void labelStripe(ImageProcessor ip, int[] parent, int w, int firstRow, int endRow) {
+		byte[] pixels = PixelKernels.bytePixels(ip);
+		for (int y = firstRow; y < endRow; ++y) {
+			for (int x = 0; x < w; ++x) {
+				int p = y * w + x;
+				int value = (pixels != null) ? pixels[p] : ip.get(x, y);
+				boolean isEdge = (value & 0xff) >= 0x80;// check if it is white
+				if (!isEdge) {
+					parent[p] = BACKGROUND;
+					continue;
+				}
+				parent[p] = p;
+				// the neighbors that were already labeled: left, upper left, up, upper right
+				if (x > 0 && parent[p - 1] != BACKGROUND) {
+					union(parent, p, p - 1);
+				}
+				if (y > firstRow) {
+					for (int dx = -1; dx < 2; ++dx) {
+						int nx = x + dx;
+						if (nx >= 0 && nx < w && parent[p - w + dx] != BACKGROUND) {
+							union(parent, p, p - w + dx);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Connects the last row of one stripe with the first row of the next one
+	 */
+	private static void mergeBorder(int[] parent, int w, int row) {
+		for (int x = 0; x < w; ++x) {
+			int p = row * w + x;
+			if (parent[p] != BACKGROUND) {
+				for (int dx = -1; dx < 2; ++dx) {
+					int nx = x + dx;
+					if (nx >= 0 && nx < w && parent[p - w + dx] != BACKGROUND) {
+						union(parent, p, p - w + dx);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replaces the parent of every pixel between start and end (exclusive) with
+	 * its root. Other stripes are only read: a concurrent write there replaces a
+	 * parent with its own root, so both values lead to the same root.
+	 */
+	private static void flatten(int[] parent, int start, int end) {
+		for (int p = start; p < end; ++p) {
+			if (parent[p] != BACKGROUND) {
+				int root = parent[p];
+				while (parent[root] != root) {
+					root = parent[root];
+				}
+				parent[p] = root;
+			}
+		}
+	}
+
+	private static int find(int[] parent, int p) {
+		int root = p;
+		while (parent[root] != root) {
+			root = parent[root];
+		}
+		// path compression
+		while (parent[p] != root) {
+			int next = parent[p];
+			parent[p] = root;
+			p = next;
+		}
+		return root;
+	}
+
+	/**
+	 * Merges the components of a and b. The smaller index becomes the root, so
+	 * the root is always the first pixel of the component.
+	 */
+	private static void union(int[] parent, int a, int b) {
+		int rootA = find(parent, a), rootB = find(parent, b);
+		if (rootA < rootB) {
+			parent[rootB] = rootA;
+		} else if (rootB < rootA) {
+			parent[rootA] = rootB;
+		}
+	}
+
+	/**
+	 * Collects the pixels of the components of the roots first until end
+	 * (exclusive), each in the same order as the breadth first search of the
+	 * Segmenter. The visited pixels are marked in the parent array, which is safe
+	 * because no other task touches the pixels of these components.
+	 */
+	private class SearchTask extends RecursiveTask<ArrayList<EdgeSegment>> {
+		private static final long serialVersionUID = 1L;
+		private final int[] parent, roots;
+		private final int w, h, first, end;
+
+		public SearchTask(int[] parent, int w, int h, int[] roots, int first, int end) {
+			this.parent = parent;
+			this.w = w;
+			this.h = h;
+			this.roots = roots;
+			this.first = first;
+			this.end = end;
+		}
+
+		@Override
+		protected ArrayList<EdgeSegment> compute() {
+			SearchBuffers buffers = Segmenter.BUFFERS.get();
+			ArrayList<EdgeSegment> shapes = new ArrayList<>();
+			for (int r = first; r < end; ++r) {
+				int size = breathFirstSearch(roots[r], buffers);
+
+				// Ignore any shapes that are to small
+				if (size > minSize) {
+					shapes.add(buffers.toSegment(size));
+				}
+			}
+			return shapes;
+		}
+
+		/**
+		 * @return the number of pixels in the segment
+		 */
+		private int breathFirstSearch(int root, SearchBuffers buffers) {
+			int size = 0;
+			buffers.clear();
+			buffers.enqueue(root);
+			parent[root] = VISITED;
+
+			while (!buffers.isQueueEmpty()) {
+				int current = buffers.dequeue();
+				int currentX = current % w, currentY = current / w;
+				buffers.append(size++, currentX, currentY);
+
+				// same neighbor order as EdgeMap.getNeighborhood
+				for (int dx = -1; dx < 2; dx++) {
+					for (int dy = -1; dy < 2; dy++) {
+						int x = currentX + dx;
+						int y = currentY + dy;
+						if (x >= 0 && x < w && y >= 0 && y < h && parent[y * w + x] == root) {
+							buffers.enqueue(y * w + x);
+							buffers.addStep(dx, dy);
+							parent[y * w + x] = VISITED;
+						}
+					}
+				}
+			}
+			return size;
+		}
+	}
+}
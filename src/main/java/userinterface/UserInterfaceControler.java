@@ -3,9 +3,11 @@ package userinterface;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import com.bv_gruppe_d.imagej.Hyperparameter;
 import com.bv_gruppe_d.imagej.ImageData;
@@ -13,10 +15,12 @@ import com.bv_gruppe_d.imagej.Label;
 import com.bv_gruppe_d.imagej.Session;
 
 import classification.Classifier;
+import featureextraction.EllipseDetector;
 import featureextraction.EllipsisData;
 import featureextraction.FeatureExtractor;
 import featureextraction.FeatureVector;
 import featureextraction.HoughTransformation;
+import featureextraction.LeastSquaresEllipseFit;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -70,7 +74,12 @@ public class UserInterfaceControler {
 	private FabricClassificationScatterChartPopulator populator;
 	private ObservableList<String> featureDimensions;
 
-	private final HoughTransformation houghTransformation;
+	/**
+	 * The worker threads that are shared by the preprocessing and the ellipse
+	 * detection
+	 */
+	private final ForkJoinPool pool;
+	private final EllipseDetector ellipseDetector;
 	private final FeatureExtractor featureExtractor;
 	
 	
@@ -78,12 +87,41 @@ public class UserInterfaceControler {
 		this.buttons = new ArrayList<>();
 		this.session = new Session();
 		this.dialogs = new UserDialogs();
-		this.houghTransformation = new HoughTransformation(
-				Hyperparameter.HOUGH_ACCUMULATOR_THRESHOLD, Hyperparameter.HOUGH_ACCUMULATOR_BIN_SIZE, 
-				Hyperparameter.HOUGH_ELLIPSIS_AXIS_MIN, Hyperparameter.HOUGH_ELLIPSIS_AXIS_MAX);
+		this.pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		this.ellipseDetector = createEllipseDetector(Hyperparameter.ELLIPSE_DETECTION_ENGINE, pool);
 		this.featureExtractor = new FeatureExtractor();
 	}
 
+	/**
+	 * Releases the resources held by the image processing chain. Should be called
+	 * once the user interface is closed.
+	 */
+	public void shutdown() {
+		ellipseDetector.shutdown();
+		pool.shutdown();
+	}
+
+	/**
+	 * Creates the ellipse detector for the given engine, configured with the
+	 * values from the Hyperparameter class.
+	 * 
+	 * @param pool the pool the detector may schedule its work on
+	 */
+	private static EllipseDetector createEllipseDetector(EllipseDetector.Engine engine, ForkJoinPool pool) {
+		switch (engine) {
+		case LEAST_SQUARES:
+			return new LeastSquaresEllipseFit(Hyperparameter.LEAST_SQUARES_MIN_INLIER_RATIO,
+					Hyperparameter.HOUGH_ELLIPSIS_AXIS_MIN, Hyperparameter.HOUGH_ELLIPSIS_AXIS_MAX);
+		case HOUGH:
+		default:
+			HoughTransformation houghTransformation = new HoughTransformation(
+					Hyperparameter.HOUGH_ACCUMULATOR_THRESHOLD, Hyperparameter.HOUGH_ACCUMULATOR_BIN_SIZE, 
+					Hyperparameter.HOUGH_ELLIPSIS_AXIS_MIN, Hyperparameter.HOUGH_ELLIPSIS_AXIS_MAX, pool);
+			houghTransformation.setMode(Hyperparameter.HOUGH_MODE);
+			return houghTransformation;
+		}
+	}
+
 	/**
 	 * Takes a directory from the user and maps the images in the subfolders to
 	 * labeled ImageData objects representing the training data for a classifier.
@@ -125,15 +163,21 @@ public class UserInterfaceControler {
 				FeatureVector[] vectors = session.getTestFeatureVectors();
 				Classifier classifier = session.getClassifier();
 				
-				if (classifier == null) {
-					dialogs.showInformationLater("Trainieren Sie zunächst einen Klassifizierer");
-				} else if (vectors == null && (images == null || images.size() == 0)) {
-					dialogs.showInformationLater("Bitte lesen Sie zunächst Testdaten ein.");
-				} else if (vectors == null) {
-					session.setTestFeatureVectors(vectors = generateFeatureVectors(images, testProgressBar));
-					classifiy(classifier, vectors);
-				} else {
-					classifiy(classifier, vectors);
+				try {
+					if (classifier == null) {
+						dialogs.showInformationLater("Trainieren Sie zunächst einen Klassifizierer");
+					} else if (vectors == null && (images == null || images.size() == 0)) {
+						dialogs.showInformationLater("Bitte lesen Sie zunächst Testdaten ein.");
+					} else if (vectors == null) {
+						session.setTestFeatureVectors(vectors = generateFeatureVectors(images, testProgressBar));
+						classifiy(classifier, vectors);
+					} else {
+						classifiy(classifier, vectors);
+					}
+				} catch (UncheckedIOException e) {
+					// The images are read from their files while the feature vectors are generated
+					e.printStackTrace();
+					showImageReadingError(e);
 				}
 				
 				Platform.runLater(() -> enableButtons());
@@ -141,6 +185,14 @@ public class UserInterfaceControler {
 		}.start();
 	}
 
+	/**
+	 * Tells the user that an image of the session could not be read from its file anymore.
+	 */
+	private void showImageReadingError(UncheckedIOException e) {
+		dialogs.showErrorLater("Beim Lesen der Bilder ist leider ein Fehler aufgetreten." 
+				+ System.lineSeparator() + e.getCause().getMessage());
+	}
+
 	/**
 	 * @return Returns a set of Feature Vectors corresponding to the given images.
 	 */
@@ -196,17 +248,19 @@ public class UserInterfaceControler {
 	 * and returns the resulting FeatureVector
 	 */
 	private FeatureVector generateFeatureVector(ImageData image) {
-		// do not modify the original
-		ImageData processImage = image.duplicate();
 		// Processing the whole image takes way too long for testing, so we just
-		// use a part. This might negatively affect up the error detection
-		processImage.getImageProcessor().setRoi(0, 0, Math.min(512, image.getImageProcessor().getWidth()), 
-				Math.min(512, image.getImageProcessor().getHeight()));
-		processImage = new ImageData(processImage.getImageProcessor().crop(), processImage.getLabel());
+		// use a part. This might negatively affect up the error detection.
+		// The part is a copy, so the original is not modified
+		// (the files are already decoded only in this part, see ImageDataCreator).
+		// The size is known without the image processor, so an image that is read
+		// from its file is only decoded once, by the crop
+		final int size = Hyperparameter.ANALYSIS_REGION_SIZE;
+		ImageData processImage = image.crop(0, 0, Math.min(size, image.getWidth()), 
+				Math.min(size, image.getHeight()));
 		
-		processImage = new ImageData(PreProcessing.execute(processImage).getImageProcessor(), processImage.getLabel());
+		processImage = new ImageData(PreProcessing.execute(processImage, pool).getImageProcessor(), processImage.getLabel());
 
-		List<EllipsisData> ellipses = houghTransformation.execute(processImage);
+		List<EllipsisData> ellipses = ellipseDetector.execute(processImage);
 		
 		BufferedImage bi = DrawEllipses.drawEllipses(processImage.getImageProcessor(), ellipses);
 		evaluationImageView.setImage(SwingFXUtils.toFXImage(bi, null));
@@ -248,17 +302,23 @@ public class UserInterfaceControler {
 				FeatureVector[] vectors = session.getTrainingFeatureVectors();
 				Classifier classifier = new Classifier();
 				
-				if (vectors == null && (images == null || images.size() == 0)) {
-					dialogs.showInformationLater("Bitte lesen Sie zunächst Trainingsdaten ein.");
-				} else {
-					if (vectors == null) {
-						session.setTrainingFeatureVectors(
-								vectors = generateFeatureVectors(images, trainingProgressBar));
-						Platform.runLater(() -> initializeScatterPlot());
+				try {
+					if (vectors == null && (images == null || images.size() == 0)) {
+						dialogs.showInformationLater("Bitte lesen Sie zunächst Trainingsdaten ein.");
+					} else {
+						if (vectors == null) {
+							session.setTrainingFeatureVectors(
+									vectors = generateFeatureVectors(images, trainingProgressBar));
+							Platform.runLater(() -> initializeScatterPlot());
+						}
+						trainClassifier(classifier, vectors);
 					}
-					trainClassifier(classifier, vectors);
+					session.setClassifier(classifier);
+				} catch (UncheckedIOException e) {
+					// The images are read from their files while the feature vectors are generated
+					e.printStackTrace();
+					showImageReadingError(e);
 				}
-				session.setClassifier(classifier);
 				Platform.runLater(() -> enableButtons());
 			}
 		}.start();
@@ -1,6 +1,8 @@
 package userinterface;
 
 import java.awt.Dimension;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.IOException;
 
 import javax.swing.JFrame;
@@ -18,6 +20,8 @@ import javafx.scene.Scene;
  */
 public class UserInterfaceView {
 
+	private final UserInterfaceControler controler = new UserInterfaceControler();
+
 	/**
 	 * Create a process on a Thread containing the Java Swing components. 
 	 */
@@ -41,6 +45,12 @@ public class UserInterfaceView {
         frame.setMinimumSize(new Dimension(1050,650));
         final JFXPanel fxPanel = new JFXPanel();
         frame.add(fxPanel);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                controler.shutdown();
+            }
+        });
         frame.setVisible(true);
 
         // Thread for JavaFX interactions
@@ -63,7 +73,7 @@ public class UserInterfaceView {
         try {
         	FXMLLoader loader = new FXMLLoader();
         	loader.setLocation(getClass().getClassLoader().getResource("MainPage.fxml"));
-        	loader.setController(new UserInterfaceControler());
+        	loader.setController(controler);
         	Parent root = loader.load();
             
             Scene scene = new Scene(root, 450, 450);
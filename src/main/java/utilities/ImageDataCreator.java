@@ -1,12 +1,29 @@
 package utilities;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.ObjIntConsumer;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
 
+import com.bv_gruppe_d.imagej.Hyperparameter;
 import com.bv_gruppe_d.imagej.ImageData;
 import com.bv_gruppe_d.imagej.Label;
 
@@ -37,6 +54,7 @@ public class ImageDataCreator {
 	/**
 	 * Given a valid upper directory this method iterates over the directories matching the expected
 	 * names for automatic labeling and creates a list of ImageData objects from the files in the directories.
+	 * If the directory contains an {@link ImagePack} it is read instead of the image files.
 	 * @param upperDirectory The directory that contains the folders named for automatic labeling of the contained images.
 	 * @return All ImageData objects that could be labeled automatically from the sub-directories.
 	 */
@@ -46,19 +64,140 @@ public class ImageDataCreator {
 		
 	    if (upperDirectory != null && upperDirectory.isDirectory()) {
 	    	labelDirectories = getDirectoriesWithLabeldImages(upperDirectory);
-	    	for (File directory : labelDirectories) {
+	    	File pack = new File(upperDirectory, ImagePack.FILE_NAME);
+	    	if (pack.isFile()) {
 	    		try {
-					labeldImages.addAll(getLabeldImagesFromDirectory(directory));
-				} catch (Exception e) {
-					IJ.showMessage(e.getMessage());
-				}
-			}
+	    			labeldImages.addAll(ImagePack.read(pack));
+	    		} catch (IOException e) {
+	    			IJ.showMessage(e.getMessage());
+	    		}
+	    	}
+	    	if (labeldImages.isEmpty()) {
+	    		// The images finish in any order, they are sorted back into the order of the files
+	    		loadLabeldImageData(upperDirectory, Hyperparameter.LAZY_IMAGE_LOADING, (imageData, index) -> {
+	    			while (labeldImages.size() <= index) {
+	    				labeldImages.add(null);
+	    			}
+	    			labeldImages.set(index, imageData);
+	    		});
+	    		// Files that could not be loaded leave a gap
+	    		labeldImages.removeIf(Objects::isNull);
+	    	}
 	    }
 	    promptUserInformationForLoadingProcess(labelDirectories, labeldImages);
 	    
 	    return labeldImages;
 	}
 	
+	/**
+	 * Decodes the images in the directories for automatic labeling and writes them into an {@link ImagePack}
+	 * in the directory, which is used by {@link #getLabeldImageData(File)} from then on.
+	 * @param upperDirectory The directory that contains the folders named for automatic labeling of the contained images.
+	 * @return The file of the pack.
+	 * @throws IOException Throws exceptions from writing the pack.
+	 */
+	public static File createImagePack(File upperDirectory) throws IOException {
+		if (upperDirectory == null || !upperDirectory.isDirectory()) {
+			throw new IOException("Der Ordner " + upperDirectory + " existiert nicht.");
+		}
+		File pack = new File(upperDirectory, ImagePack.FILE_NAME);
+		// Written next to the pack, so an old pack stays usable until the new one is complete
+		File temporary = new File(upperDirectory, ImagePack.FILE_NAME + ".tmp");
+		ArrayList<IOException> errors = new ArrayList<>();
+		try (ImagePack.Writer writer = new ImagePack.Writer(temporary)) {
+			loadLabeldImageData(upperDirectory, false, (imageData, index) -> {
+				try {
+					if (errors.isEmpty()) {
+						writer.add(imageData, index);
+					}
+				} catch (IOException e) {
+					errors.add(e);
+				}
+			});
+		}
+		if (!errors.isEmpty()) {
+			temporary.delete();
+			throw errors.get(0);
+		}
+		Files.move(temporary.toPath(), pack.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return pack;
+	}
+	
+	/**
+	 * Loads the images in the directories for automatic labeling and hands every image to the consumer as
+	 * soon as it is loaded. The directories are walked while the files are loaded by
+	 * {@link Hyperparameter#IMAGE_LOADING_THREADS} threads (see {@link #createImageData(File, Label, boolean)}).
+	 * At most {@link Hyperparameter#IMAGE_LOADING_MAX_IN_FLIGHT} images are being loaded or consumed at the
+	 * same time, so a slow consumer slows down the loading instead of filling the memory.
+	 * 
+	 * The consumer is called by the loading threads, but never by two of them at the same time. The
+	 * images arrive in the order they finish. Returns when all images were consumed.
+	 * @param upperDirectory The directory that contains the folders named for automatic labeling of the contained images.
+	 * @param lazy If true {@link LazyImageData} is created instead of decoding the images.
+	 * @param consumer Receives each labeled image with the position of its file among all files.
+	 */
+	private static void loadLabeldImageData(File upperDirectory, boolean lazy, ObjIntConsumer<ImageData> consumer) {
+		final int maxInFlight = Hyperparameter.IMAGE_LOADING_MAX_IN_FLIGHT;
+		final Semaphore inFlight = new Semaphore(maxInFlight);
+		final Object consumerLock = new Object();
+		final ArrayList<String> errors = new ArrayList<>();
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Hyperparameter.IMAGE_LOADING_THREADS, runnable -> {
+			Thread thread = new Thread(runnable, "hsowl_loadImages");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			int index = 0;
+			for (File directory : getDirectoriesWithLabeldImages(upperDirectory)) {
+				Label label = determineLabelFromDirectory(directory);
+				File[] files = directory.listFiles();
+				if (files == null) {
+					synchronized (consumerLock) {
+						errors.add("Der Ordner " + directory.getName() + " konnte nicht gelesen werden.");
+					}
+					continue;
+				}
+				for (File file : files) {
+					if (!file.isFile()) {
+						continue;
+					}
+					inFlight.acquire();
+					final int fileIndex = index++;
+					executor.execute(() -> {
+						try {
+							ImageData imageData = createImageData(file, label, lazy);
+							synchronized (consumerLock) {
+								consumer.accept(imageData, fileIndex);
+							}
+						} catch (IOException | RuntimeException e) {
+							synchronized (consumerLock) {
+								errors.add(file.getName() + ": " + e.getMessage());
+							}
+						} finally {
+							inFlight.release();
+						}
+					});
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			synchronized (consumerLock) {
+				errors.add(e.getMessage());
+			}
+		} finally {
+			// All permits are back once the last image was consumed
+			inFlight.acquireUninterruptibly(maxInFlight);
+			executor.shutdown();
+		}
+		
+		if (!errors.isEmpty()) {
+			IJ.showMessage("Beim Laden der Bilder sind " + errors.size() + " Fehler aufgetreten." + System.lineSeparator() 
+				+ errors.get(0));
+		}
+	}
+	
 	/**
 	 * Extracts the paths for directories contained in the given folder that can be used for automatic labeling.
 	 * @param folder The directory containing the sub-directories named for automatic labeling.
@@ -66,7 +205,11 @@ public class ImageDataCreator {
 	 */
 	private static ArrayList<File> getDirectoriesWithLabeldImages(final File folder) {
 	    ArrayList<File> directories = new ArrayList<>();
-		for (File fileEntry : folder.listFiles()) {
+	    File[] entries = folder.listFiles();
+	    if (entries == null) {
+	    	return directories;
+	    }
+		for (File fileEntry : entries) {
 			if (fileEntry.isDirectory() && expectedDirectories.contains(fileEntry.getName())) {	           
 	            directories.add(fileEntry);
 	        }
@@ -74,27 +217,6 @@ public class ImageDataCreator {
 		return directories;
 	}
 	
-	/**
-	 * Loads all images in the directory to ImageData objects and labels them depending on the name of the directory.
-	 * @param directory The directory containing the files to be loaded. 
-	 * @return The ImageData objects from the images in the directory.
-	 * @throws Exception Throws exceptions occurring in the process of image loading.
-	 */
-	private static ArrayList<ImageData> getLabeldImagesFromDirectory(File directory) throws Exception {
-		Label label = determineLabelFromDirectory(directory);
-		
-		//Load all images
-		File[] files = directory.listFiles();
-		ArrayList<ImageData> labeldImages = new ArrayList<>();
-		for (File file : files) {
-			if (file.isFile()) {
-				ByteProcessor bp = loadFileToImageProcessor(file);
-				labeldImages.add(new ImageData(bp, label));
-			}
-		}
-		return labeldImages;
-	}
-	
 	/**
 	 * Maps the given directory to the enum values of the Label enumeration.
 	 * @param directory The directory to be decided upon.
@@ -119,13 +241,133 @@ public class ImageDataCreator {
 	}	
 	
 	/**
-	 * Creates a ByteProcessor from the given file.
+	 * Creates the ImageData for a file of the training or test data.
+	 * @param file The file containing an image to be loaded.
+	 * @param label The label of the image.
+	 * @param lazy If true only the header of the file is read to make sure it can be decoded later,
+	 * otherwise the image is decoded.
+	 * @return A {@link LazyImageData} or an ImageData with the decoded image.
+	 * @throws IOException Throws exceptions from the IO operation.
+	 */
+	private static ImageData createImageData(File file, Label label, boolean lazy) throws IOException {
+		if (lazy) {
+			Rectangle size = withReader(file, reader -> getDecodedSize(reader));
+			return new LazyImageData(file, size.width, size.height, label);
+		}
+		return new ImageData(loadFileToImageProcessor(file), label);
+	}
+	
+	/**
+	 * Does something with the reader of an image file.
+	 */
+	private interface ReaderTask<T> {
+		T run(ImageReader reader) throws IOException;
+	}
+	
+	/**
+	 * Opens the file with the first reader that supports it and runs the task with it.
+	 * @param file The file containing an image.
+	 * @param task The task that is run with the reader, its input is set to the file.
+	 * @return The result of the task.
+	 * @throws IOException Throws exceptions from the IO operation or if no reader supports the file.
+	 */
+	private static <T> T withReader(File file, ReaderTask<T> task) throws IOException {
+		try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+			Iterator<ImageReader> readers = (input == null) ? null : ImageIO.getImageReaders(input);
+			if (readers == null || !readers.hasNext()) {
+				throw new IOException("Die Datei " + file.getName() + " ist kein unterstütztes Bild.");
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				return task.run(reader);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+	
+	/**
+	 * Creates a ByteProcessor from the given file. Only the upper left part that is analyzed
+	 * ({@link Hyperparameter#ANALYSIS_REGION_SIZE}) is decoded, subsampled by
+	 * {@link Hyperparameter#DECODING_SUBSAMPLING}. If the reader can decode the file as 8 bit gray
+	 * image the decoded pixels are used by the ByteProcessor without a copy.
 	 * @param file The file containing an image to be loaded.
 	 * @return A ByteProcessor for the given file.
 	 * @throws IOException Throws exceptions from the IO operation.
 	 */
-	private static ByteProcessor loadFileToImageProcessor(File file) throws IOException {
-		BufferedImage image = ImageIO.read(file);
+	static ByteProcessor loadFileToImageProcessor(File file) throws IOException {
+		return withReader(file, reader -> toByteProcessor(reader.read(0, createReadParam(reader))));
+	}
+	
+	/**
+	 * @param reader The reader with its input already set.
+	 * @return The part of the first image of the reader that is decoded.
+	 * @throws IOException Throws exceptions from reading the header of the image.
+	 */
+	private static Rectangle getSourceRegion(ImageReader reader) throws IOException {
+		final int regionSize = Hyperparameter.ANALYSIS_REGION_SIZE * Hyperparameter.DECODING_SUBSAMPLING;
+		return new Rectangle(0, 0, Math.min(regionSize, reader.getWidth(0)), Math.min(regionSize, reader.getHeight(0)));
+	}
+	
+	/**
+	 * @param reader The reader with its input already set.
+	 * @return The size of the image decoded with {@link #createReadParam(ImageReader)}, without decoding it.
+	 * @throws IOException Throws exceptions from reading the header of the image.
+	 */
+	private static Rectangle getDecodedSize(ImageReader reader) throws IOException {
+		final int subsampling = Hyperparameter.DECODING_SUBSAMPLING;
+		Rectangle region = getSourceRegion(reader);
+		// every subsampling-th pixel starting with the first one
+		return new Rectangle((region.width + subsampling - 1) / subsampling, (region.height + subsampling - 1) / subsampling);
+	}
+	
+	/**
+	 * Creates the parameters to decode only the analyzed region of the first image of the reader.
+	 * @param reader The reader with its input already set.
+	 * @return The parameters for {@link ImageReader#read(int, ImageReadParam)}.
+	 * @throws IOException Throws exceptions from reading the header of the image.
+	 */
+	private static ImageReadParam createReadParam(ImageReader reader) throws IOException {
+		final int subsampling = Hyperparameter.DECODING_SUBSAMPLING;
+		
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setSourceRegion(getSourceRegion(reader));
+		param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+		
+		Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+		while (types.hasNext()) {
+			ImageTypeSpecifier type = types.next();
+			if (type.getBufferedImageType() == BufferedImage.TYPE_BYTE_GRAY) {
+				param.setDestinationType(type);
+				break;
+			}
+		}
+		return param;
+	}
+	
+	/**
+	 * Creates a ByteProcessor from the decoded image. A gray image whose rows are stored one after
+	 * another is used without copying the pixels.
+	 * @param image The decoded image.
+	 * @return A ByteProcessor for the image.
+	 */
+	private static ByteProcessor toByteProcessor(BufferedImage image) {
+		Raster raster = image.getRaster();
+		if (image.getType() == BufferedImage.TYPE_BYTE_GRAY
+				&& raster.getDataBuffer() instanceof DataBufferByte
+				&& raster.getSampleModel() instanceof ComponentSampleModel) {
+			final int width = raster.getWidth();
+			final int height = raster.getHeight();
+			DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+			ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+			
+			if (buffer.getOffset() == 0 && buffer.getData().length == width * height
+					&& sampleModel.getScanlineStride() == width && sampleModel.getPixelStride() == 1
+					&& raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0) {
+				return new ByteProcessor(width, height, buffer.getData());
+			}
+		}
 		return new ByteProcessor(image);
 	}
 	
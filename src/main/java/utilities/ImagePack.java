@@ -0,0 +1,313 @@
+package utilities;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+
+import com.bv_gruppe_d.imagej.Hyperparameter;
+import com.bv_gruppe_d.imagej.ImageData;
+import com.bv_gruppe_d.imagej.Label;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * A file that stores already decoded images with their labels, so a set of training or test images does
+ * not have to be decoded again in every session. The images are stored the way {@link ImageDataCreator}
+ * decodes them: cropped to the analyzed region and with 8 bit gray values.
+ *
+ * The file is read through a memory mapping. Reading a pack only reads its index, the pixels of an image
+ * are copied once from the mapping when the image is used.
+ *
+ * Layout of the file (big endian):
+ * - header: magic number, version, {@link Hyperparameter#ANALYSIS_REGION_SIZE} and
+ *   {@link Hyperparameter#DECODING_SUBSAMPLING} the images were decoded with (int each) and the offset
+ *   of the index (long)
+ * - the pixels of all images, row by row
+ * - index: the number of images (int) and for each image its label (UTF), width, height (int each) and
+ *   the offset of its pixels (long)
+ */
+public class ImagePack {
+
+	/**
+	 * The name of the pack in a directory with training or test images.
+	 */
+	public static final String FILE_NAME = "Bilder.pack";
+
+	private static final int MAGIC = 0x48534950; // "HSIP"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 4 * 4 + 8;
+
+	/**
+	 * A mapping can not be bigger than this, so bigger packs are mapped in several chunks.
+	 */
+	private static final long MAX_MAPPING_SIZE = Integer.MAX_VALUE;
+
+	/**
+	 * Builds a pack from the images in the directories for automatic labeling. The pack is
+	 * written into the directory as {@link #FILE_NAME}, where {@link ImageDataCreator#getLabeldImageData(File)}
+	 * uses it instead of decoding the images. The pack has to be built again when the images change.
+	 *
+	 * Usage: ImagePack &lt;directory&gt;
+	 * @param args The directory that contains the folders named for automatic labeling.
+	 * @throws IOException Throws exceptions from writing the pack.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("Aufruf: ImagePack <Ordner mit den Bildern>");
+			return;
+		}
+		File pack = ImageDataCreator.createImagePack(new File(args[0]));
+		System.out.println("Bildpaket geschrieben: " + pack.getAbsolutePath());
+	}
+
+	/**
+	 * Reads the index of a pack and maps the pixels of its images.
+	 * @param file The pack.
+	 * @return The images of the pack in the order they were written, with their labels.
+	 * @throws IOException Thrown when the file is no pack, was built with other decoding parameters
+	 * than the current ones or cannot be read.
+	 */
+	public static ArrayList<ImageData> read(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while (header.hasRemaining()) {
+				if (channel.read(header) < 0) {
+					throw new EOFException("Die Datei " + file.getName() + " ist kein Bildpaket.");
+				}
+			}
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException("Die Datei " + file.getName() + " ist kein Bildpaket.");
+			}
+			if (header.getInt() != Hyperparameter.ANALYSIS_REGION_SIZE
+					|| header.getInt() != Hyperparameter.DECODING_SUBSAMPLING) {
+				throw new IOException("Das Bildpaket " + file.getName() + " wurde mit anderen Parametern erstellt.");
+			}
+			final long indexOffset = header.getLong();
+
+			DataInputStream index = new DataInputStream(
+					new BufferedInputStream(Channels.newInputStream(channel.position(indexOffset))));
+			final int count = index.readInt();
+			Label[] labels = new Label[count];
+			int[] widths = new int[count], heights = new int[count];
+			long[] offsets = new long[count];
+			long maxLength = 0;
+			for (int i = 0; i < count; i++) {
+				labels[i] = readLabel(index);
+				widths[i] = index.readInt();
+				heights[i] = index.readInt();
+				offsets[i] = index.readLong();
+				long length = (long) widths[i] * heights[i];
+				if (widths[i] < 0 || heights[i] < 0 || offsets[i] < HEADER_SIZE || offsets[i] + length > indexOffset) {
+					throw new IOException("Das Bildpaket " + file.getName() + " ist beschädigt.");
+				}
+				maxLength = Math.max(maxLength, length);
+			}
+
+			// The pixels are mapped in chunks that overlap by the biggest image, so every image lies
+			// completely in the chunk its first pixel is in, no matter in which order they were written.
+			// Packs smaller than MAX_MAPPING_SIZE are mapped as a whole.
+			final long chunkSize = MAX_MAPPING_SIZE - maxLength;
+			final long dataSize = indexOffset - HEADER_SIZE;
+			if (chunkSize <= 0) {
+				throw new IOException("Das Bildpaket " + file.getName() + " enthält zu große Bilder.");
+			}
+			MappedByteBuffer[] chunks = new MappedByteBuffer[(int) Math.max(1, (dataSize + chunkSize - 1) / chunkSize)];
+
+			ArrayList<ImageData> images = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				int chunk = (int) ((offsets[i] - HEADER_SIZE) / chunkSize);
+				long chunkStart = HEADER_SIZE + chunk * chunkSize;
+				if (chunks[chunk] == null) {
+					chunks[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart,
+							Math.min(chunkSize + maxLength, indexOffset - chunkStart));
+				}
+				ByteBuffer pixels = chunks[chunk].duplicate();
+				pixels.position((int) (offsets[i] - chunkStart));
+				pixels.limit(pixels.position() + widths[i] * heights[i]);
+				images.add(new PackedImageData(pixels.slice(), widths[i], heights[i], labels[i]));
+			}
+			return images;
+		}
+	}
+
+	private static Label readLabel(DataInputStream index) throws IOException {
+		String name = index.readUTF();
+		try {
+			return Label.valueOf(name);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Unbekanntes Label im Bildpaket: " + name, e);
+		}
+	}
+
+	/**
+	 * Writes a pack. The images may be added in any order, they are read back in the order given by
+	 * their position. The pack is only valid after the writer was closed.
+	 */
+	public static class Writer implements Closeable {
+
+		/**
+		 * The index entry of one image.
+		 */
+		private static class Entry {
+			final int position;
+			final Label label;
+			final int width, height;
+			final long offset;
+
+			Entry(int position, Label label, int width, int height, long offset) {
+				this.position = position;
+				this.label = label;
+				this.width = width;
+				this.height = height;
+				this.offset = offset;
+			}
+		}
+
+		private final FileChannel channel;
+		private final ArrayList<Entry> entries = new ArrayList<>();
+
+		/**
+		 * Creates the pack, an existing file is overwritten.
+		 * @param file The file of the pack.
+		 * @throws IOException Throws exceptions from creating the file.
+		 */
+		public Writer(File file) throws IOException {
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			// the header is written last, so an incomplete pack is never taken for a valid one
+			channel.position(HEADER_SIZE);
+		}
+
+		/**
+		 * Writes the pixels of an image into the pack.
+		 * @param imageData The image, it has to be an 8 bit image.
+		 * @param position The position of the image when the pack is read.
+		 * @throws IOException Throws exceptions from writing the file.
+		 */
+		public void add(ImageData imageData, int position) throws IOException {
+			ImageProcessor imageProcessor = imageData.getImageProcessor();
+			if (!(imageProcessor instanceof ByteProcessor)) {
+				throw new IllegalArgumentException("Ein Bildpaket kann nur 8 Bit Bilder enthalten.");
+			}
+			final int width = imageProcessor.getWidth();
+			final int height = imageProcessor.getHeight();
+			entries.add(new Entry(position, imageData.getLabel(), width, height, channel.position()));
+			writeFully(ByteBuffer.wrap((byte[]) imageProcessor.getPixels(), 0, width * height));
+		}
+
+		/**
+		 * Writes the index and the header and closes the file.
+		 * @throws IOException Throws exceptions from writing the file.
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				final long indexOffset = channel.position();
+				entries.sort(Comparator.comparingInt(entry -> entry.position));
+
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream index = new DataOutputStream(bytes);
+				index.writeInt(entries.size());
+				for (Entry entry : entries) {
+					index.writeUTF(entry.label.name());
+					index.writeInt(entry.width);
+					index.writeInt(entry.height);
+					index.writeLong(entry.offset);
+				}
+				index.flush();
+				writeFully(ByteBuffer.wrap(bytes.toByteArray()));
+
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(VERSION);
+				header.putInt(Hyperparameter.ANALYSIS_REGION_SIZE).putInt(Hyperparameter.DECODING_SUBSAMPLING);
+				header.putLong(indexOffset);
+				header.flip();
+				channel.position(0);
+				writeFully(header);
+			} finally {
+				channel.close();
+			}
+		}
+
+		private void writeFully(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+
+	/**
+	 * An image of a pack. The pixels stay in the mapping of the file until they are used, every call
+	 * of {@link #getImageProcessor()} and {@link #duplicate()} returns a new copy, so they should be
+	 * called once per use of the image. The size is known without a copy and
+	 * {@link #crop(int, int, int, int)} copies only the requested part.
+	 */
+	private static class PackedImageData extends ImageData {
+		private final ByteBuffer pixels;
+		private final int width, height;
+
+		PackedImageData(ByteBuffer pixels, int width, int height, Label label) {
+			super(null, label);
+			this.pixels = pixels;
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		public ImageProcessor getImageProcessor() {
+			byte[] copy = new byte[width * height];
+			pixels.duplicate().get(copy);
+			return new ByteProcessor(width, height, copy);
+		}
+
+		@Override
+		public int getWidth() {
+			return width;
+		}
+
+		@Override
+		public int getHeight() {
+			return height;
+		}
+
+		@Override
+		public ImageData duplicate() {
+			return new ImageData(getImageProcessor(), getLabel());
+		}
+
+		@Override
+		public ImageData crop(int x, int y, int width, int height) {
+			if (!new Rectangle(0, 0, this.width, this.height).contains(new Rectangle(x, y, width, height))) {
+				return super.crop(x, y, width, height);
+			}
+			byte[] part = new byte[width * height];
+			ByteBuffer source = pixels.duplicate();
+			if (x == 0 && width == this.width) {
+				// whole rows lie one after another
+				source.position(y * width);
+				source.get(part);
+				return new ImageData(new ByteProcessor(width, height, part), getLabel());
+			}
+			for (int row = 0; row < height; row++) {
+				source.position((y + row) * this.width + x);
+				source.get(part, row * width, width);
+			}
+			return new ImageData(new ByteProcessor(width, height, part), getLabel());
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.SoftReference;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.bv_gruppe_d.imagej.Hyperparameter;
+import com.bv_gruppe_d.imagej.ImageData;
+import com.bv_gruppe_d.imagej.Label;
+
+import ij.process.ImageProcessor;
+
+/**
+ * An ImageData that only keeps the file and the label of the image. The image is decoded whenever
+ * the image processor is requested, so the size of the training and test data is not limited by
+ * the memory. The last {@link Hyperparameter#IMAGE_CACHE_SIZE} decoded images are kept in a cache,
+ * which the garbage collector may empty when the memory runs low.
+ * 
+ * The image processor may be shared with other users of the cache, so it must not be modified.
+ * {@link #duplicate()} and {@link #crop(int, int, int, int)} return copies that may be modified.
+ */
+public class LazyImageData extends ImageData {
+
+	/**
+	 * The decoded images by their file, the least recently used one is removed first.
+	 */
+	@SuppressWarnings("serial") // This class will not be serialized.
+	private static final Map<File, SoftReference<ImageProcessor>> cache = Collections.synchronizedMap(
+			new LinkedHashMap<File, SoftReference<ImageProcessor>>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<File, SoftReference<ImageProcessor>> eldest) {
+					return size() > Hyperparameter.IMAGE_CACHE_SIZE;
+				}
+			});
+	
+	private final File file;
+	private final int width, height;
+	
+	/**
+	 * @param file The file of the image.
+	 * @param width The width of the image after decoding.
+	 * @param height The height of the image after decoding.
+	 * @param label The label of the image.
+	 */
+	public LazyImageData(File file, int width, int height, Label label) {
+		super(null, label);
+		this.file = file;
+		this.width = width;
+		this.height = height;
+	}
+	
+	public File getFile() {
+		return this.file;
+	}
+	
+	@Override
+	public int getWidth() {
+		return width;
+	}
+	
+	@Override
+	public int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * Returns the image from the cache or decodes it from the file.
+	 * @throws UncheckedIOException Thrown when the file cannot be decoded anymore.
+	 */
+	@Override
+	public ImageProcessor getImageProcessor() {
+		SoftReference<ImageProcessor> cached = cache.get(file);
+		ImageProcessor imageProcessor = (cached == null) ? null : cached.get();
+		if (imageProcessor == null) {
+			try {
+				imageProcessor = ImageDataCreator.loadFileToImageProcessor(file);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			if (Hyperparameter.IMAGE_CACHE_SIZE > 0) {
+				cache.put(file, new SoftReference<>(imageProcessor));
+			}
+		}
+		return imageProcessor;
+	}
+}